@@ -0,0 +1,194 @@
+package com.moagrius.tilepacker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Packs directories of tiles into a single archive for StreamProviderArchive (which describes the format).
+ *
+ * Usage: TilePacker output.tva zoom=pattern [zoom=pattern ...]
+ *
+ * Each pattern is the same path a StreamProviderFiles would be given for that zoom level, e.g.
+ * {@code 1=tiles/phi-500000-%1$d_%2$d.jpg} - every file in the pattern's directory that matches it is packed as the tile
+ * at that column and row.  {@code %d} on its own is the column, then the row.
+ */
+public class TilePacker {
+
+  // keep in step with StreamProviderArchive
+  private static final int MAGIC = 0x54564131;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 12;
+  private static final int LEVEL_HEADER_SIZE = 20;
+  private static final int INDEX_ENTRY_SIZE = 12;
+
+  private static final Pattern TOKEN = Pattern.compile("%(?:([12])\\$)?d");
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: TilePacker output.tva zoom=pattern [zoom=pattern ...]");
+      System.exit(1);
+    }
+    List<Level> levels = new ArrayList<>();
+    for (int i = 1; i < args.length; i++) {
+      int separator = args[i].indexOf('=');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Expected zoom=pattern, got " + args[i]);
+      }
+      int zoom = Integer.parseInt(args[i].substring(0, separator));
+      Level level = Level.scan(zoom, args[i].substring(separator + 1));
+      System.out.println("zoom " + zoom + ": " + level.mCount + " tiles, " + level.mColumns + " columns x " + level.mRows + " rows");
+      levels.add(level);
+    }
+    File output = new File(args[0]);
+    long size = write(output, levels);
+    System.out.println("wrote " + size + " bytes to " + output);
+  }
+
+  private static long write(File output, List<Level> levels) throws IOException {
+    // every offset is known up front - the header, then each level's index, then each level's tiles, row by row
+    long position = HEADER_SIZE + (long) levels.size() * LEVEL_HEADER_SIZE;
+    for (Level level : levels) {
+      level.mIndexOffset = position;
+      position += (long) level.mColumns * level.mRows * INDEX_ENTRY_SIZE;
+    }
+    long dataOffset = position;
+    for (Level level : levels) {
+      for (File file : level.mFiles) {
+        if (file != null) {
+          position += file.length();
+        }
+      }
+    }
+    // the reader maps the whole archive into one buffer
+    if (position > Integer.MAX_VALUE) {
+      throw new IOException("Archive would be " + position + " bytes - at most " + Integer.MAX_VALUE + " can be mapped");
+    }
+    try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 64 * 1024))) {
+      outputStream.writeInt(MAGIC);
+      outputStream.writeInt(VERSION);
+      outputStream.writeInt(levels.size());
+      for (Level level : levels) {
+        outputStream.writeInt(level.mZoom);
+        outputStream.writeInt(level.mColumns);
+        outputStream.writeInt(level.mRows);
+        outputStream.writeLong(level.mIndexOffset);
+      }
+      position = dataOffset;
+      for (Level level : levels) {
+        for (File file : level.mFiles) {
+          int length = file == null ? 0 : (int) file.length();
+          outputStream.writeLong(length == 0 ? 0 : position);
+          outputStream.writeInt(length);
+          position += length;
+        }
+      }
+      byte[] buffer = new byte[64 * 1024];
+      for (Level level : levels) {
+        for (File file : level.mFiles) {
+          if (file != null) {
+            copy(file, outputStream, buffer);
+          }
+        }
+      }
+    }
+    return position;
+  }
+
+  private static void copy(File file, DataOutputStream outputStream, byte[] buffer) throws IOException {
+    long expected = file.length();
+    long copied = 0;
+    try (InputStream inputStream = new FileInputStream(file)) {
+      int read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+        copied += read;
+      }
+    }
+    // the index has already been written with the length we measured
+    if (copied != expected) {
+      throw new IOException(file + " changed while packing");
+    }
+  }
+
+  private static class Level {
+
+    final int mZoom;
+    final int mColumns;
+    final int mRows;
+    final int mCount;
+    // row by row, null where there's no tile
+    final File[] mFiles;
+    long mIndexOffset;
+
+    private Level(int zoom, int columns, int rows, int count, File[] files) {
+      mZoom = zoom;
+      mColumns = columns;
+      mRows = rows;
+      mCount = count;
+      mFiles = files;
+    }
+
+    static Level scan(int zoom, String pattern) throws IOException {
+      File template = new File(pattern);
+      File directory = template.getAbsoluteFile().getParentFile();
+      File[] candidates = directory.listFiles();
+      if (candidates == null) {
+        throw new IOException("Can't list " + directory);
+      }
+      Matcher matcher = TOKEN.matcher(template.getName());
+      StringBuilder regex = new StringBuilder();
+      int[] groups = new int[2];
+      int group = 0;
+      int last = 0;
+      while (matcher.find()) {
+        if (group == 2) {
+          throw new IllegalArgumentException("Too many placeholders in " + pattern);
+        }
+        regex.append(Pattern.quote(template.getName().substring(last, matcher.start()))).append("(\\d+)");
+        // %1$d is the column and %2$d the row, wherever they are.  bare %d are in that order
+        groups[group] = matcher.group(1) == null ? group : Integer.parseInt(matcher.group(1)) - 1;
+        group++;
+        last = matcher.end();
+      }
+      if (group != 2 || groups[0] == groups[1]) {
+        throw new IllegalArgumentException("Expected a column and a row placeholder in " + pattern);
+      }
+      regex.append(Pattern.quote(template.getName().substring(last)));
+      Pattern name = Pattern.compile(regex.toString());
+      List<int[]> positions = new ArrayList<>();
+      List<File> files = new ArrayList<>();
+      int columns = 0;
+      int rows = 0;
+      for (File candidate : candidates) {
+        Matcher match = name.matcher(candidate.getName());
+        if (!candidate.isFile() || !match.matches()) {
+          continue;
+        }
+        int[] position = new int[2];
+        position[groups[0]] = Integer.parseInt(match.group(1));
+        position[groups[1]] = Integer.parseInt(match.group(2));
+        columns = Math.max(columns, position[0] + 1);
+        rows = Math.max(rows, position[1] + 1);
+        positions.add(position);
+        files.add(candidate);
+      }
+      File[] grid = new File[columns * rows];
+      for (int i = 0; i < files.size(); i++) {
+        int[] position = positions.get(i);
+        grid[position[1] * columns + position[0]] = files.get(i);
+      }
+      return new Level(zoom, columns, rows, files.size(), grid);
+    }
+
+  }
+
+}
@@ -0,0 +1,94 @@
+package com.moagrius.tileview;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A set of 64 bit hashes that can only answer "definitely not" or "maybe".  Sized for about 1% false positives at the
+ * expected number of insertions, with probes derived from the two halves of the hash (so callers hash once).
+ *
+ * Adding is not atomic with respect to concurrent reads - a reader racing an add may not see it yet.
+ */
+class BloomFilter {
+
+  private static final int BITS_PER_ENTRY = 10;
+  private static final int PROBE_COUNT = 7;
+  private static final int MIN_BITS = 1 << 13;
+  private static final int MAX_BITS = 1 << 26;
+
+  private final long[] mBits;
+  private final int mMask;
+  private final int mExpectedInsertions;
+  private int mInsertions;
+
+  BloomFilter(int expectedInsertions) {
+    long bits = (long) Math.max(1, expectedInsertions) * BITS_PER_ENTRY;
+    int size = (int) Math.min(MAX_BITS, Math.max(MIN_BITS, Long.highestOneBit(bits * 2 - 1)));
+    mBits = new long[size >>> 6];
+    mMask = size - 1;
+    mExpectedInsertions = expectedInsertions;
+  }
+
+  private BloomFilter(long[] bits, int expectedInsertions, int insertions) {
+    mBits = bits;
+    mMask = (bits.length << 6) - 1;
+    mExpectedInsertions = expectedInsertions;
+    mInsertions = insertions;
+  }
+
+  void add(long hash) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    for (int i = 0; i < PROBE_COUNT; i++) {
+      int bit = (h1 + i * h2) & mMask;
+      mBits[bit >>> 6] |= 1L << bit;
+    }
+    mInsertions++;
+  }
+
+  boolean mightContain(long hash) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    for (int i = 0; i < PROBE_COUNT; i++) {
+      int bit = (h1 + i * h2) & mMask;
+      if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // nothing is ever taken out, so once well past what it was sized for, it's mostly "maybe"
+  boolean isSaturated() {
+    return mInsertions > mExpectedInsertions * 2;
+  }
+
+  int getExpectedInsertions() {
+    return mExpectedInsertions;
+  }
+
+  void writeTo(DataOutputStream outputStream) throws IOException {
+    outputStream.writeInt(mExpectedInsertions);
+    outputStream.writeInt(mInsertions);
+    outputStream.writeInt(mBits.length);
+    for (long word : mBits) {
+      outputStream.writeLong(word);
+    }
+  }
+
+  static BloomFilter readFrom(DataInputStream inputStream) throws IOException {
+    int expectedInsertions = inputStream.readInt();
+    int insertions = inputStream.readInt();
+    int length = inputStream.readInt();
+    if (length <= 0 || length > (MAX_BITS >>> 6) || Integer.bitCount(length) != 1) {
+      throw new IOException("Invalid filter length " + length);
+    }
+    long[] bits = new long[length];
+    for (int i = 0; i < length; i++) {
+      bits[i] = inputStream.readLong();
+    }
+    return new BloomFilter(bits, expectedInsertions, insertions);
+  }
+
+}
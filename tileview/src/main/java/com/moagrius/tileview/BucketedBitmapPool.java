@@ -0,0 +1,173 @@
+package com.moagrius.tileview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Bitmaps that are no longer drawn or cached (evicted from the memory cache, or decoded for a tile that was destroyed),
+ * kept to decode new tiles into.  Bitmaps are bucketed by allocation size and config, and a tile takes one from the
+ * smallest bucket that's big enough - so an edge tile, smaller than a full one, can reuse a full tile's bitmap.  The
+ * bucket sizes are kept sorted, so that's a binary search over a handful of sizes rather than a scan of every bitmap.
+ * When over budget, bitmaps are dropped from the least recently used bucket.  Buckets are dropped as soon as they're empty.
+ */
+public class BucketedBitmapPool implements TileView.BitmapPool {
+
+  private final LongLruMap<ArrayDeque<Bitmap>> mBuckets = new LongLruMap<>(8);
+  // every bucket's key, ascending - by config, then allocation size
+  private long[] mBucketKeys = new long[8];
+  private int mBucketCount;
+  // emptied buckets, kept so a size that comes and goes doesn't allocate a new one each time
+  private final ArrayDeque<ArrayDeque<Bitmap>> mSpareBuckets = new ArrayDeque<>();
+  private int mMaxSize;
+  private int mSize;
+
+  /**
+   * @param maxSize Budget, in kilobytes.
+   */
+  public BucketedBitmapPool(int maxSize) {
+    mMaxSize = maxSize;
+  }
+
+  private static long getBucketKey(int byteCount, Bitmap.Config config) {
+    return ((long) config.ordinal() << 32) | byteCount;
+  }
+
+  private static int getConfigOrdinal(long bucketKey) {
+    return (int) (bucketKey >>> 32);
+  }
+
+  // rounded up, so even the smallest bitmap counts against the budget
+  private static int sizeOf(Bitmap bitmap) {
+    return (bitmap.getAllocationByteCount() + 1023) / 1024;
+  }
+
+  @Override
+  public synchronized void put(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+      return;
+    }
+    int size = sizeOf(bitmap);
+    if (size > mMaxSize) {
+      return;
+    }
+    long key = getBucketKey(bitmap.getAllocationByteCount(), bitmap.getConfig());
+    ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+    if (bucket == null) {
+      bucket = mSpareBuckets.isEmpty() ? new ArrayDeque<>() : mSpareBuckets.pollLast();
+      mBuckets.put(key, bucket);
+      addBucketKey(key);
+    }
+    bucket.addLast(bitmap);
+    mSize += size;
+    trimToSize(mMaxSize);
+  }
+
+  @Override
+  public Bitmap getBitmapForReuse(Tile tile) {
+    Bitmap candidate = poll(tile);
+    // clear outside the lock, and only if the decode won't write over every pixel anyway - for an opaque tile that's
+    // hundreds of kilobytes of writes for nothing
+    if (candidate != null && !tile.willCoverReusedBitmap()) {
+      candidate.eraseColor(Color.BLACK);
+    }
+    return candidate;
+  }
+
+  private synchronized Bitmap poll(Tile tile) {
+    if (mBucketCount == 0) {
+      return null;
+    }
+    BitmapFactory.Options options = tile.getMeasureOptions();
+    Bitmap.Config config = tile.getDrawingOptions().inPreferredConfig;
+    if (config == null) {
+      return null;
+    }
+    int width = options.outWidth / options.inSampleSize;
+    int height = options.outHeight / options.inSampleSize;
+    long key = findBucketKey(getBucketKey(width * height * getBytesPerPixel(config), config));
+    if (key == -1) {
+      return null;
+    }
+    // anything with at least as big an allocation can be reconfigured to fit (we don't support anything below kitkat)
+    ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+    Bitmap candidate = bucket.pollLast();
+    mSize -= sizeOf(candidate);
+    if (bucket.isEmpty()) {
+      removeBucket(key);
+    }
+    return candidate;
+  }
+
+  // the smallest bucket of the same config at least as big as this, or -1
+  private long findBucketKey(long key) {
+    int index = Arrays.binarySearch(mBucketKeys, 0, mBucketCount, key);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    if (index == mBucketCount || getConfigOrdinal(mBucketKeys[index]) != getConfigOrdinal(key)) {
+      return -1;
+    }
+    return mBucketKeys[index];
+  }
+
+  private void addBucketKey(long key) {
+    int index = -Arrays.binarySearch(mBucketKeys, 0, mBucketCount, key) - 1;
+    if (mBucketCount == mBucketKeys.length) {
+      mBucketKeys = Arrays.copyOf(mBucketKeys, mBucketCount * 2);
+    }
+    System.arraycopy(mBucketKeys, index, mBucketKeys, index + 1, mBucketCount - index);
+    mBucketKeys[index] = key;
+    mBucketCount++;
+  }
+
+  private void removeBucket(long key) {
+    mSpareBuckets.addLast(mBuckets.remove(key));
+    int index = Arrays.binarySearch(mBucketKeys, 0, mBucketCount, key);
+    System.arraycopy(mBucketKeys, index + 1, mBucketKeys, index, mBucketCount - index - 1);
+    mBucketCount--;
+  }
+
+  @Override
+  public synchronized void trim(float fraction) {
+    if (fraction <= 0) {
+      clear();
+    } else {
+      trimToSize((int) (mMaxSize * fraction));
+    }
+  }
+
+  public synchronized void clear() {
+    mBuckets.clear();
+    mBucketCount = 0;
+    mSpareBuckets.clear();
+    mSize = 0;
+  }
+
+  // drop the oldest bitmaps of the least recently used sizes first.  buckets are never empty, so the eldest always has one
+  private void trimToSize(int maxSize) {
+    while (mSize > maxSize && !mBuckets.isEmpty()) {
+      long key = mBuckets.eldestKey();
+      ArrayDeque<Bitmap> bucket = mBuckets.valueAt(mBuckets.eldestSlot());
+      mSize -= sizeOf(bucket.pollFirst());
+      if (bucket.isEmpty()) {
+        removeBucket(key);
+      }
+    }
+  }
+
+  private static int getBytesPerPixel(Bitmap.Config config) {
+    switch (config) {
+      case ARGB_8888:
+        return 4;
+      case RGB_565:
+      case ARGB_4444:
+        return 2;
+    }
+    return 1;
+  }
+
+}
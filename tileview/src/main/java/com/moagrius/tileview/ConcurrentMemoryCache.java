@@ -0,0 +1,281 @@
+package com.moagrius.tileview;
+
+/**
+ * A memory cache (packed TileKey to TileBitmap) for many threads.  Keys are spread over independently locked stripes, so
+ * workers rarely wait on each other or on the UI thread, and each lock is only held for a probe or two.  Eviction is CLOCK
+ * rather than strict LRU - a hit just marks the entry as referenced, and eviction sweeps past (and clears) referenced
+ * entries until it finds one that isn't.  Evicted bitmaps are released outside the stripe's lock.
+ *
+ * Sizes are exact, in kilobytes, and the budget is split evenly between stripes.  A small budget gets fewer stripes, so
+ * each can still hold at least the largest tile we expect.
+ */
+public class ConcurrentMemoryCache implements TileView.TileCache {
+
+  private static final int DEFAULT_STRIPE_COUNT = 16;
+  // in kilobytes - a 512px ARGB_8888 tile
+  private static final int MAX_ENTRY_SIZE = 1024;
+
+  private final Stripe[] mStripes;
+  private final int mStripeMask;
+
+  public ConcurrentMemoryCache(int maxSize) {
+    this(maxSize, DEFAULT_STRIPE_COUNT);
+  }
+
+  /**
+   * @param stripeCount Rounded up to a power of 2, then halved until each stripe's share of the budget fits a tile.
+   */
+  public ConcurrentMemoryCache(int maxSize, int stripeCount) {
+    int count = Integer.highestOneBit(Math.max(1, stripeCount * 2 - 1));
+    // a stripe that can't fit a tile would drop every tile put in it
+    while (count > 1 && maxSize / count < MAX_ENTRY_SIZE) {
+      count >>= 1;
+    }
+    mStripes = new Stripe[count];
+    mStripeMask = count - 1;
+    int stripeSize = Math.max(1, maxSize / count);
+    for (int i = 0; i < count; i++) {
+      mStripes[i] = new Stripe(stripeSize);
+    }
+  }
+
+  int getStripeCount() {
+    return mStripes.length;
+  }
+
+  private Stripe getStripe(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    // use the high bits - the stripe's own table uses the low ones
+    return mStripes[(int) (hash >>> 40) & mStripeMask];
+  }
+
+  private static int sizeOf(TileBitmap bitmap) {
+    return bitmap.getSize();
+  }
+
+  @Override
+  public TileBitmap get(long key) {
+    Stripe stripe = getStripe(key);
+    synchronized (stripe) {
+      TileBitmap bitmap = stripe.get(key);
+      if (bitmap != null && bitmap.acquire()) {
+        return bitmap;
+      }
+      return null;
+    }
+  }
+
+  @Override
+  public void put(long key, TileBitmap value) {
+    if (value == null) {
+      return;
+    }
+    if (!value.isCacheable()) {
+      value.release();
+      return;
+    }
+    Stripe stripe = getStripe(key);
+    TileBitmap previous;
+    synchronized (stripe) {
+      previous = stripe.put(key, value, sizeOf(value));
+    }
+    // if it's the one we already had, we only need the one reference
+    if (previous != null) {
+      previous.release();
+    }
+    trim(stripe, stripe.mMaxSize);
+  }
+
+  @Override
+  public void remove(long key) {
+    Stripe stripe = getStripe(key);
+    TileBitmap bitmap;
+    synchronized (stripe) {
+      bitmap = stripe.remove(key);
+    }
+    if (bitmap != null) {
+      bitmap.release();
+    }
+  }
+
+  /**
+   * @return The total size of everything cached, in kilobytes.
+   */
+  public int getSize() {
+    int size = 0;
+    for (Stripe stripe : mStripes) {
+      synchronized (stripe) {
+        size += stripe.mSize;
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public void trim(float fraction) {
+    for (Stripe stripe : mStripes) {
+      trim(stripe, (int) (stripe.mMaxSize * fraction));
+    }
+  }
+
+  // one eviction per lock, so the pool is never called while we hold a stripe
+  private void trim(Stripe stripe, int maxSize) {
+    while (true) {
+      TileBitmap evicted;
+      synchronized (stripe) {
+        if (stripe.mSize <= maxSize || stripe.mCount == 0) {
+          return;
+        }
+        evicted = stripe.evict();
+      }
+      evicted.release();
+    }
+  }
+
+  // open addressed (linear probing) with a reference bit per slot for the clock.  guarded by its own monitor
+  private static class Stripe {
+
+    private final int mMaxSize;
+
+    private long[] mKeys = new long[16];
+    private TileBitmap[] mValues = new TileBitmap[16];
+    private int[] mSizes = new int[16];
+    private boolean[] mReferenced = new boolean[16];
+    private int mMask = 15;
+    private int mHand;
+    private int mCount;
+    private int mSize;
+
+    Stripe(int maxSize) {
+      mMaxSize = maxSize;
+    }
+
+    private int indexFor(long key) {
+      long hash = key * 0x9E3779B97F4A7C15L;
+      return (int) (hash ^ (hash >>> 32)) & mMask;
+    }
+
+    private int find(long key) {
+      int index = indexFor(key);
+      while (mValues[index] != null) {
+        if (mKeys[index] == key) {
+          return index;
+        }
+        index = (index + 1) & mMask;
+      }
+      return -1;
+    }
+
+    TileBitmap get(long key) {
+      int index = find(key);
+      if (index == -1) {
+        return null;
+      }
+      mReferenced[index] = true;
+      return mValues[index];
+    }
+
+    TileBitmap put(long key, TileBitmap value, int size) {
+      int index = find(key);
+      if (index != -1) {
+        TileBitmap previous = mValues[index];
+        mSize += size - mSizes[index];
+        mValues[index] = value;
+        mSizes[index] = size;
+        mReferenced[index] = true;
+        return previous;
+      }
+      if ((mCount + 1) * 2 > mKeys.length) {
+        grow();
+      }
+      insert(key, value, size, false);
+      return null;
+    }
+
+    private void insert(long key, TileBitmap value, int size, boolean referenced) {
+      int index = indexFor(key);
+      while (mValues[index] != null) {
+        index = (index + 1) & mMask;
+      }
+      mKeys[index] = key;
+      mValues[index] = value;
+      mSizes[index] = size;
+      mReferenced[index] = referenced;
+      mCount++;
+      mSize += size;
+    }
+
+    TileBitmap remove(long key) {
+      int index = find(key);
+      if (index == -1) {
+        return null;
+      }
+      TileBitmap value = mValues[index];
+      removeAt(index);
+      return value;
+    }
+
+    // sweep from the hand, giving referenced entries a second chance.  only call when not empty
+    TileBitmap evict() {
+      while (true) {
+        int index = mHand;
+        mHand = (mHand + 1) & mMask;
+        if (mValues[index] == null) {
+          continue;
+        }
+        if (mReferenced[index]) {
+          mReferenced[index] = false;
+          continue;
+        }
+        TileBitmap value = mValues[index];
+        removeAt(index);
+        return value;
+      }
+    }
+
+    // backward shift deletion, same as LongLruMap
+    private void removeAt(int index) {
+      mCount--;
+      mSize -= mSizes[index];
+      mValues[index] = null;
+      int gap = index;
+      int next = (gap + 1) & mMask;
+      while (mValues[next] != null) {
+        int ideal = indexFor(mKeys[next]);
+        boolean canMove = gap <= next ? (ideal <= gap || ideal > next) : (ideal <= gap && ideal > next);
+        if (canMove) {
+          mKeys[gap] = mKeys[next];
+          mValues[gap] = mValues[next];
+          mSizes[gap] = mSizes[next];
+          mReferenced[gap] = mReferenced[next];
+          mValues[next] = null;
+          gap = next;
+        }
+        next = (next + 1) & mMask;
+      }
+    }
+
+    private void grow() {
+      long[] keys = mKeys;
+      TileBitmap[] values = mValues;
+      int[] sizes = mSizes;
+      boolean[] referenced = mReferenced;
+      int capacity = keys.length << 1;
+      mKeys = new long[capacity];
+      mValues = new TileBitmap[capacity];
+      mSizes = new int[capacity];
+      mReferenced = new boolean[capacity];
+      mMask = capacity - 1;
+      mHand = 0;
+      mCount = 0;
+      mSize = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (values[i] != null) {
+          insert(keys[i], values[i], sizes[i], referenced[i]);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,148 @@
+package com.moagrius.tileview;
+
+import android.graphics.Bitmap;
+
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Stands in for a cache that's opened on a background thread, so opening it (e.g., replaying a large journal) doesn't hold
+ * up whoever built the view.  Until it's open, every lookup misses (so tiles go to their source) and writes are dropped;
+ * once it's open, everything goes straight through.  If it fails to open, it stays that way.
+ *
+ * Closing it closes the cache - right away if it's open, otherwise as soon as opening finishes.
+ */
+class DeferredBitmapCache implements TileView.BitmapCache {
+
+  private volatile TileView.BitmapCache mCache;
+  private volatile long mOpenDuration = -1;
+  // guarded by this
+  private boolean mIsSettled;
+  private boolean mIsClosed;
+  private OpenListener mOpenListener;
+
+  DeferredBitmapCache(Callable<TileView.BitmapCache> opener) {
+    Thread thread = new Thread(() -> open(opener), "tileview-disk-cache-open");
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  private void open(Callable<TileView.BitmapCache> opener) {
+    long start = System.nanoTime();
+    TileView.BitmapCache cache = null;
+    try {
+      cache = opener.call();
+    } catch (Exception e) {
+      // stays closed
+    }
+    mOpenDuration = (System.nanoTime() - start) / 1000000;
+    TileView.BitmapCache closed = null;
+    OpenListener listener;
+    synchronized (this) {
+      if (mIsClosed) {
+        closed = cache;
+        cache = null;
+      }
+      mCache = cache;
+      mIsSettled = true;
+      listener = mOpenListener;
+      mOpenListener = null;
+    }
+    if (closed != null) {
+      closed.close();
+    }
+    if (listener != null) {
+      listener.onOpen(cache);
+    }
+  }
+
+  /**
+   * Called once opening is done - right away, on this thread, if it already is, otherwise on the thread that opened it.
+   * Replaces any listener set before.
+   */
+  void setOpenListener(OpenListener listener) {
+    TileView.BitmapCache cache;
+    synchronized (this) {
+      if (!mIsSettled) {
+        mOpenListener = listener;
+        return;
+      }
+      cache = mCache;
+    }
+    listener.onOpen(cache);
+  }
+
+  // milliseconds, or -1 if still opening
+  long getOpenDuration() {
+    return mOpenDuration;
+  }
+
+  @Override
+  public void close() {
+    TileView.BitmapCache cache;
+    synchronized (this) {
+      mIsClosed = true;
+      mOpenListener = null;
+      cache = mCache;
+      mCache = null;
+    }
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  @Override
+  public Bitmap get(long key) {
+    TileView.BitmapCache cache = mCache;
+    return cache == null ? null : cache.get(key);
+  }
+
+  @Override
+  public Bitmap put(long key, Bitmap value) {
+    TileView.BitmapCache cache = mCache;
+    return cache == null ? value : cache.put(key, value);
+  }
+
+  @Override
+  public Bitmap remove(long key) {
+    TileView.BitmapCache cache = mCache;
+    return cache == null ? null : cache.remove(key);
+  }
+
+  @Override
+  public InputStream openStream(long key) {
+    TileView.BitmapCache cache = mCache;
+    return cache == null ? null : cache.openStream(key);
+  }
+
+  // true while not open, so the tile doesn't encode a bitmap just to have it dropped
+  @Override
+  public boolean putEncoded(long key, byte[] bytes, int offset, int length) {
+    TileView.BitmapCache cache = mCache;
+    return cache == null || cache.putEncoded(key, bytes, offset, length);
+  }
+
+  @Override
+  public boolean putPixels(long key, Bitmap bitmap) {
+    TileView.BitmapCache cache = mCache;
+    return cache == null || cache.putPixels(key, bitmap);
+  }
+
+  @Override
+  public boolean hasPixels(long key) {
+    TileView.BitmapCache cache = mCache;
+    return cache != null && cache.hasPixels(key);
+  }
+
+  @Override
+  public boolean getPixels(long key, Bitmap bitmap) {
+    TileView.BitmapCache cache = mCache;
+    return cache != null && cache.getPixels(key, bitmap);
+  }
+
+  interface OpenListener {
+    // the cache, or null if it failed to open
+    void onOpen(TileView.BitmapCache cache);
+  }
+
+}
@@ -28,6 +28,8 @@ public class Detail {
   private int mSample;
   private int mZoom;
   private Object mData;
+  // set when the view shares a cache, so its tiles can't be mistaken for another image's
+  private int mNamespace;
 
   public Detail(int zoom, Object data) {
     mData = data;
@@ -47,6 +49,14 @@ public class Detail {
     return mSample;
   }
 
+  int getNamespace() {
+    return mNamespace;
+  }
+
+  void setNamespace(int namespace) {
+    mNamespace = namespace;
+  }
+
   @Override
   public int hashCode() {
     int hash = 17;
@@ -4,61 +4,270 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.os.Process;
 
 import com.jakewharton.disklrucache.DiskLruCache;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Writes are write-behind - put only queues the bytes (or a copy of the bitmap, which is encoded as a PNG there), and a
+ * single background thread writes them out in batches.  A key that's already queued isn't queued again, and when the queue is full, writes are dropped
+ * (the tile can always be read from its source again).  Queued writes are readable before they reach the disk, and one
+ * that's removed (or cleared) before it's written never is.
+ *
+ * A Bloom filter of every name that's been written sits in front of the cache, so a lookup for something that was never
+ * cached (the usual case, the first time anywhere is seen) returns without touching the cache's lock or the file system.
+ * It's kept by a JournalFilter, and saved after each batch of writes along with how far into the journal it's current,
+ * so later opens only read what's been added since.
+ */
 public class DiskCache implements TileView.BitmapCache {
 
   private static final String DIRECTORY_NAME = "tileview-cache";
   private static final int IO_BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_PENDING_WRITES = 32;
+  private static final long WRITER_KEEP_ALIVE_MS = 5000;
+  // DiskLruCache's journal
+  private static final String JOURNAL_FILE_NAME = "journal";
+  private static final String FILTER_FILE_SUFFIX = ".filter";
+  // for sizing the filter - most tiles are smaller, and over-sizing only costs a few bits each
+  private static final int AVERAGE_ENTRY_SIZE = 8 * 1024;
 
-  private DiskLruCache mDiskCache;
+  private final File mDirectory;
+  private final int mSize;
+  // replaced when cleared
+  private volatile DiskLruCache mDiskCache;
+  private TileView.DiskCacheFormat mFormat;
+  private final JournalFilter mJournalFilter;
+  // only added to on the writer thread
+  private volatile BloomFilter mFilter;
+
+  // name to bytes, in the order they were queued.  the writer moves them all to the batch at once, and they stay there
+  // until they're written, so reads can still find them.  only what's waiting counts against the limit.  guarded by
+  // mPendingWrites, along with the generation, which clearing moves on
+  private final Map<String, PendingWrite> mPendingWrites = new LinkedHashMap<>();
+  private final Map<String, PendingWrite> mWriteBatch = new LinkedHashMap<>();
+  private int mGeneration;
+  // the writer's copy of the batch, so it can be walked without holding the lock
+  private final List<Map.Entry<String, PendingWrite>> mBatchEntries = new ArrayList<>();
+  // held by the writer for each write, so removing or clearing waits for one in progress rather than racing it
+  private final Object mWriteLock = new Object();
+  private final ThreadPoolExecutor mWriter = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+  private final Runnable mWriteTask = this::writePending;
+  private boolean mIsWriteScheduled;
+  private boolean mIsClosed;
 
   public DiskCache(Context context, int size) throws IOException {
-    File directory = new File(context.getCacheDir(), DIRECTORY_NAME);
-    mDiskCache = DiskLruCache.open(directory, 1, 1, size);
+    this(context, size, TileView.DiskCacheFormat.SOURCE);
+  }
+
+  public DiskCache(Context context, int size, TileView.DiskCacheFormat format) throws IOException {
+    this(context, size, format, null);
   }
 
+  /**
+   * @param name Tells apart the caches of different images, each in a directory of its own.  Keys only say where a tile
+   *             is, so images sharing a directory would read each other's tiles.
+   */
+  public DiskCache(Context context, int size, TileView.DiskCacheFormat format, String name) throws IOException {
+    String directoryName = name == null ? DIRECTORY_NAME : DIRECTORY_NAME + "-" + name;
+    mDirectory = new File(context.getCacheDir(), directoryName);
+    mSize = size;
+    mDiskCache = DiskLruCache.open(mDirectory, 1, 1, size);
+    mFormat = format;
+    // the filter's saved next to the cache's directory rather than in it, so the cache never sees it
+    mJournalFilter = new JournalFilter(new File(mDirectory, JOURNAL_FILE_NAME), new File(context.getCacheDir(), directoryName + FILTER_FILE_SUFFIX), Math.max(1, size / AVERAGE_ENTRY_SIZE));
+    mFilter = mJournalFilter.load();
+    // the writer only has a thread while there's something to write
+    mWriter.allowCoreThreadTimeOut(true);
+  }
+
+  // the bitmap goes back to the pool once the tile's done with it, so the writer encodes a copy.  copying the pixels is a
+  // small part of what encoding them would cost the decode thread
   @Override
-  public Bitmap put(String key, Bitmap data) {
-    if (contains(key)) {
+  public Bitmap put(long key, Bitmap data) {
+    String name = TileKey.toString(key);
+    if (data == null || data.getConfig() == null || !canQueue(name)) {
       return data;
     }
+    Bitmap copy = data.copy(data.getConfig(), false);
+    if (copy != null) {
+      queue(name, new PendingWrite(copy));
+    }
+    return data;
+  }
+
+  // entries are decoded by sniffing their format, so source bytes and PNGs can live side by side
+  @Override
+  public boolean putEncoded(long key, byte[] bytes, int offset, int length) {
+    if (mFormat != TileView.DiskCacheFormat.SOURCE) {
+      return false;
+    }
+    String name = TileKey.toString(key);
+    // the tile's buffer is reused for its next read, so queue a copy
+    if (canQueue(name)) {
+      queue(name, new PendingWrite(Arrays.copyOfRange(bytes, offset, offset + length)));
+    }
+    return true;
+  }
+
+  private boolean canQueue(String name) {
+    synchronized (mPendingWrites) {
+      return mPendingWrites.size() < MAX_PENDING_WRITES && !isQueued(name);
+    }
+  }
+
+  // guarded by mPendingWrites
+  private boolean isQueued(String name) {
+    return mPendingWrites.containsKey(name) || mWriteBatch.containsKey(name);
+  }
+
+  // shed rather than wait - whoever's writing is a decode thread, with visible tiles waiting on it
+  private void queue(String name, PendingWrite write) {
+    synchronized (mPendingWrites) {
+      if (mIsClosed || mPendingWrites.size() >= MAX_PENDING_WRITES || isQueued(name)) {
+        return;
+      }
+      mPendingWrites.put(name, write);
+      if (!mIsWriteScheduled) {
+        mIsWriteScheduled = true;
+        mWriter.execute(mWriteTask);
+      }
+    }
+  }
+
+  private boolean mightContain(String name) {
+    return mFilter.mightContain(JournalFilter.hash(name));
+  }
+
+  // encoded here if the writer hasn't got to it yet
+  private byte[] getPendingWrite(String name) {
+    PendingWrite write;
+    synchronized (mPendingWrites) {
+      write = mPendingWrites.get(name);
+      if (write == null) {
+        write = mWriteBatch.get(name);
+      }
+    }
+    return write == null ? null : write.getBytes();
+  }
+
+  // runs on the writer thread until nothing's left, encoding whatever was queued as a bitmap.  the journal is flushed and
+  // the filter saved once per batch
+  private void writePending() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    while (true) {
+      int generation;
+      synchronized (mPendingWrites) {
+        if (mPendingWrites.isEmpty()) {
+          mIsWriteScheduled = false;
+          return;
+        }
+        generation = mGeneration;
+        mWriteBatch.putAll(mPendingWrites);
+        mPendingWrites.clear();
+        mBatchEntries.addAll(mWriteBatch.entrySet());
+      }
+      boolean wrote = false;
+      for (Map.Entry<String, PendingWrite> entry : mBatchEntries) {
+        // outside the lock, so a remove or clear doesn't wait on it
+        byte[] bytes = entry.getValue().getBytes();
+        synchronized (mWriteLock) {
+          if (bytes != null && isStillQueued(entry.getKey(), entry.getValue(), generation)) {
+            wrote |= write(entry.getKey(), bytes);
+          }
+        }
+      }
+      synchronized (mWriteLock) {
+        if (wrote && isCurrent(generation)) {
+          try {
+            mDiskCache.flush();
+          } catch (IOException e) {
+            // no op
+          }
+          mJournalFilter.save(mFilter);
+        }
+      }
+      synchronized (mPendingWrites) {
+        if (mGeneration == generation) {
+          mWriteBatch.clear();
+        }
+      }
+      mBatchEntries.clear();
+    }
+  }
+
+  // false if it's been removed, or the cache cleared, since the batch was taken
+  private boolean isStillQueued(String name, PendingWrite write, int generation) {
+    synchronized (mPendingWrites) {
+      return mGeneration == generation && mWriteBatch.get(name) == write;
+    }
+  }
+
+  private boolean isCurrent(int generation) {
+    synchronized (mPendingWrites) {
+      return mGeneration == generation;
+    }
+  }
+
+  // true if the entry was written (and so added to the filter).  the filter goes first - once the entry's out of the
+  // pending writes, lookups rely on it
+  private boolean write(String name, byte[] bytes) {
+    if (mightContain(name) && contains(name)) {
+      return false;
+    }
     DiskLruCache.Editor editor = null;
     try {
-      editor = mDiskCache.edit(key);
+      editor = mDiskCache.edit(name);
       if (editor != null) {
-        if (writeBitmapToCache(data, editor)) {
-          mDiskCache.flush();
+        if (writeBytesToCache(bytes, editor)) {
+          mFilter.add(JournalFilter.hash(name));
           editor.commit();
+          return true;
         } else {
           editor.abort();
         }
       }
-    } catch (IOException e) {
+    } catch (Exception e) {
       try {
         if (editor != null) {
           editor.abort();
         }
-      } catch (IOException ignored) {
+      } catch (Exception ignored) {
         //
       }
     }
-    return data;
+    return false;
   }
 
   @Override
-  public Bitmap get(String key) {
+  public Bitmap get(long key) {
+    String name = TileKey.toString(key);
+    byte[] pending = getPendingWrite(name);
+    if (pending != null) {
+      return BitmapFactory.decodeByteArray(pending, 0, pending.length);
+    }
+    if (!mightContain(name)) {
+      return null;
+    }
     DiskLruCache.Snapshot snapshot = null;
     try {
-      snapshot = mDiskCache.get(key);
+      snapshot = mDiskCache.get(name);
       if (snapshot == null) {
         return null;
       }
@@ -78,21 +287,63 @@ public class DiskCache implements TileView.BitmapCache {
   }
 
   @Override
-  public Bitmap remove(String key) {
+  public InputStream openStream(long key) {
+    String name = TileKey.toString(key);
+    byte[] pending = getPendingWrite(name);
+    if (pending != null) {
+      return new ByteArrayInputStream(pending);
+    }
+    if (!mightContain(name)) {
+      return null;
+    }
     try {
-      mDiskCache.remove(key);
+      DiskLruCache.Snapshot snapshot = mDiskCache.get(name);
+      if (snapshot == null) {
+        return null;
+      }
+      return new SnapshotInputStream(snapshot);
     } catch (IOException e) {
       // no op
     }
     return null;
   }
 
-  private boolean writeBitmapToCache(Bitmap bitmap, DiskLruCache.Editor editor) {
+  @Override
+  public Bitmap remove(long key) {
+    String name = TileKey.toString(key);
+    synchronized (mPendingWrites) {
+      mPendingWrites.remove(name);
+      mWriteBatch.remove(name);
+    }
+    // if it's being written now, it's removed once it has been
+    synchronized (mWriteLock) {
+      try {
+        mDiskCache.remove(name);
+      } catch (IOException e) {
+        // no op
+      }
+    }
+    return null;
+  }
+
+  private static byte[] encode(Bitmap bitmap) {
+    try {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+      if (bitmap.compress(CompressFormat.PNG, 0, outputStream)) {
+        return outputStream.toByteArray();
+      }
+    } catch (Exception e) {
+      // no op
+    }
+    return null;
+  }
+
+  private boolean writeBytesToCache(byte[] bytes, DiskLruCache.Editor editor) {
     OutputStream outputStream = null;
     try {
       outputStream = editor.newOutputStream(0);
-      outputStream = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-      return bitmap.compress(CompressFormat.PNG, 0, outputStream);
+      outputStream.write(bytes);
+      return true;
     } catch (Exception e) {
       // no op
     } finally {
@@ -107,11 +358,11 @@ public class DiskCache implements TileView.BitmapCache {
     return false;
   }
 
-  private boolean contains(String key) {
+  private boolean contains(String name) {
     boolean contained = false;
     DiskLruCache.Snapshot snapshot = null;
     try {
-      snapshot = mDiskCache.get(key);
+      snapshot = mDiskCache.get(name);
       contained = snapshot != null;
     } catch (IOException e) {
       // no op
@@ -123,12 +374,92 @@ public class DiskCache implements TileView.BitmapCache {
     return contained;
   }
 
+  // what's already queued is still written - the writer runs one task at a time, so closing the journal is queued behind it
+  @Override
+  public void close() {
+    synchronized (mPendingWrites) {
+      if (mIsClosed) {
+        return;
+      }
+      mIsClosed = true;
+    }
+    mWriter.execute(() -> {
+      synchronized (mWriteLock) {
+        try {
+          mDiskCache.close();
+        } catch (IOException e) {
+          // no op
+        }
+      }
+    });
+    mWriter.shutdown();
+  }
+
+  // waits for a write in progress, and nothing queued before this is written after it.  deleting closes the cache, so it's
+  // opened again, empty
   public void clear() {
-    try {
-      mDiskCache.delete();
-    } catch (IOException e) {
-      // no op
+    synchronized (mPendingWrites) {
+      if (mIsClosed) {
+        return;
+      }
+      mGeneration++;
+      mPendingWrites.clear();
+      mWriteBatch.clear();
+    }
+    synchronized (mWriteLock) {
+      mFilter = mJournalFilter.create();
+      mJournalFilter.delete();
+      try {
+        mDiskCache.delete();
+        mDiskCache = DiskLruCache.open(mDirectory, 1, 1, mSize);
+      } catch (IOException e) {
+        // no op
+      }
+    }
+  }
+
+  // bytes to write, or a bitmap to encode into them first - by the writer, or by whoever reads it before the writer does
+  private static class PendingWrite {
+
+    private Bitmap mBitmap;
+    private byte[] mBytes;
+
+    PendingWrite(byte[] bytes) {
+      mBytes = bytes;
     }
+
+    PendingWrite(Bitmap bitmap) {
+      mBitmap = bitmap;
+    }
+
+    // null if it couldn't be encoded
+    synchronized byte[] getBytes() {
+      if (mBitmap != null) {
+        mBytes = encode(mBitmap);
+        mBitmap.recycle();
+        mBitmap = null;
+      }
+      return mBytes;
+    }
+
+  }
+
+  // the snapshot holds the entry open until it's closed, so close it with the stream
+  private static class SnapshotInputStream extends FilterInputStream {
+
+    private final DiskLruCache.Snapshot mSnapshot;
+
+    SnapshotInputStream(DiskLruCache.Snapshot snapshot) {
+      super(new BufferedInputStream(snapshot.getInputStream(0), IO_BUFFER_SIZE));
+      mSnapshot = snapshot;
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      mSnapshot.close();
+    }
+
   }
 
 }
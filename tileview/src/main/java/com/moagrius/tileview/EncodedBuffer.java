@@ -0,0 +1,65 @@
+package com.moagrius.tileview;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte array that a tile's streams are drained into on the io stage, and decoded from on the decode stage.
+ * Tiles are pooled, so these are too - once grown, the array is reused for the next read.
+ */
+class EncodedBuffer {
+
+  private static final int INITIAL_CAPACITY = 16 * 1024;
+
+  private byte[] mBytes;
+  private int mLength;
+
+  // drains and closes the stream.  a null stream (e.g., a missing tile) leaves the buffer empty
+  void readFrom(InputStream stream) throws IOException {
+    mLength = 0;
+    if (stream == null) {
+      return;
+    }
+    try {
+      if (mBytes == null) {
+        mBytes = new byte[INITIAL_CAPACITY];
+      }
+      int read;
+      while ((read = stream.read(mBytes, mLength, mBytes.length - mLength)) != -1) {
+        mLength += read;
+        if (mLength == mBytes.length) {
+          mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+        }
+      }
+    } finally {
+      stream.close();
+    }
+  }
+
+  byte[] getBytes() {
+    return mBytes;
+  }
+
+  int getLength() {
+    return mLength;
+  }
+
+  // jpeg (starts with an SOI marker) has no alpha channel, so a decode writes every pixel of its bounds opaque
+  boolean isJpeg() {
+    return mLength > 2 && (mBytes[0] & 0xFF) == 0xFF && (mBytes[1] & 0xFF) == 0xD8 && (mBytes[2] & 0xFF) == 0xFF;
+  }
+
+  int getCapacity() {
+    return mBytes == null ? 0 : mBytes.length;
+  }
+
+  boolean isEmpty() {
+    return mLength == 0;
+  }
+
+  void clear() {
+    mLength = 0;
+  }
+
+}
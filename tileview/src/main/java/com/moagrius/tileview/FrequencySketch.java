@@ -0,0 +1,80 @@
+package com.moagrius.tileview;
+
+/**
+ * A count-min sketch of how often packed tile keys have been seen, with 4 bit counters (16 to a long) and 4 hash functions.
+ * Counts are halved once enough have been recorded, so old popularity fades.  Estimates can only be too high, never too low.
+ *
+ * Not thread safe.
+ */
+class FrequencySketch {
+
+  private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long COUNTER_MASK = 0xfL;
+  private static final int MINIMUM_CAPACITY = 64;
+
+  private final long[] mTable;
+  private final int mMask;
+  private final int mSampleSize;
+  private int mAdditions;
+
+  // sized once, at roughly one long per entry - resizing would mean forgetting everything counted so far
+  FrequencySketch(int expectedEntries) {
+    int capacity = Integer.highestOneBit(Math.max(MINIMUM_CAPACITY, expectedEntries) * 2 - 1);
+    mTable = new long[capacity];
+    mMask = capacity - 1;
+    mSampleSize = capacity * 10;
+  }
+
+  private static int spread(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  private int indexOf(int hash, int i) {
+    long index = (hash + SEEDS[i]) * SEEDS[i];
+    index += index >>> 32;
+    return (int) index & mMask;
+  }
+
+  int frequency(long key) {
+    int hash = spread(key);
+    // each hash function reads a different counter of its long, chosen from one of 4 groups of 4
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      int offset = (start + i) << 2;
+      int count = (int) ((mTable[indexOf(hash, i)] >>> offset) & COUNTER_MASK);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  void increment(long key) {
+    int hash = spread(key);
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int offset = (start + i) << 2;
+      long mask = COUNTER_MASK << offset;
+      // saturate at 15
+      if ((mTable[index] & mask) != mask) {
+        mTable[index] += 1L << offset;
+        added = true;
+      }
+    }
+    if (added && ++mAdditions >= mSampleSize) {
+      reset();
+    }
+  }
+
+  // halve every counter
+  private void reset() {
+    for (int i = 0; i < mTable.length; i++) {
+      mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+    }
+    mAdditions >>>= 1;
+  }
+
+}
@@ -0,0 +1,154 @@
+package com.moagrius.tileview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a Bloom filter of every entry DiskLruCache's journal has committed.  It's built from the journal the first time,
+ * and saved along with how far into the journal it's current, so later loads only read what's been added since.  If the
+ * journal's been rewritten (DiskLruCache compacts it now and then), or the saved filter's full or for a different size of
+ * cache, it's built again from the start.
+ */
+class JournalFilter {
+
+  private static final int IO_BUFFER_SIZE = 8 * 1024;
+  // the line DiskLruCache writes for every committed entry
+  private static final String JOURNAL_CLEAN = "CLEAN ";
+  private static final int FILTER_MAGIC = 0x54564246;
+  // a checksum of this much of the journal (ending where the filter's current) tells us it hasn't been rewritten since
+  private static final int JOURNAL_TAIL_SIZE = 4 * 1024;
+
+  private final File mJournalFile;
+  private final File mFilterFile;
+  private final int mExpectedEntries;
+
+  JournalFilter(File journalFile, File filterFile, int expectedEntries) {
+    mJournalFile = journalFile;
+    mFilterFile = filterFile;
+    mExpectedEntries = expectedEntries;
+  }
+
+  // fnv-1a, then a final mix so both halves are usable as probes
+  static long hash(String name) {
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < name.length(); i++) {
+      hash ^= name.charAt(i);
+      hash *= 0x100000001B3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  BloomFilter create() {
+    return new BloomFilter(mExpectedEntries);
+  }
+
+  // the saved filter caught up with the journal, or a new one built from all of it.  saved again either way
+  BloomFilter load() {
+    BloomFilter filter = null;
+    long journalOffset = 0;
+    if (mFilterFile.exists()) {
+      try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mFilterFile), IO_BUFFER_SIZE))) {
+        if (inputStream.readInt() == FILTER_MAGIC) {
+          long savedLength = inputStream.readLong();
+          int savedChecksum = inputStream.readInt();
+          BloomFilter saved = BloomFilter.readFrom(inputStream);
+          if (!saved.isSaturated() && saved.getExpectedInsertions() == mExpectedEntries && savedLength <= mJournalFile.length() && savedChecksum == checksumJournalTail(savedLength)) {
+            filter = saved;
+            journalOffset = savedLength;
+          }
+        }
+      } catch (IOException e) {
+        // rebuild
+      }
+    }
+    if (filter == null) {
+      filter = create();
+    }
+    try {
+      readJournal(filter, journalOffset);
+    } catch (IOException e) {
+      // without the journal, we can't know what's cached - say maybe to everything
+      return new BloomFilter(0) {
+        @Override
+        boolean mightContain(long hash) {
+          return true;
+        }
+      };
+    }
+    save(filter);
+    return filter;
+  }
+
+  // every entry committed in the journal from the offset on (which is always the start of a line)
+  private void readJournal(BloomFilter filter, long offset) throws IOException {
+    if (!mJournalFile.exists()) {
+      return;
+    }
+    try (RandomAccessFile journal = new RandomAccessFile(mJournalFile, "r")) {
+      journal.seek(offset);
+      DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(journal.getFD()), IO_BUFFER_SIZE));
+      StringBuilder line = new StringBuilder();
+      int read;
+      while ((read = inputStream.read()) != -1) {
+        if (read != '\n') {
+          line.append((char) read);
+          continue;
+        }
+        if (line.length() > JOURNAL_CLEAN.length() && line.indexOf(JOURNAL_CLEAN) == 0) {
+          int end = line.indexOf(" ", JOURNAL_CLEAN.length());
+          filter.add(hash(line.substring(JOURNAL_CLEAN.length(), end == -1 ? line.length() : end)));
+        }
+        line.setLength(0);
+      }
+    }
+  }
+
+  private int checksumJournalTail(long length) {
+    int size = (int) Math.min(JOURNAL_TAIL_SIZE, length);
+    byte[] tail = new byte[size];
+    try (RandomAccessFile journal = new RandomAccessFile(mJournalFile, "r")) {
+      journal.seek(length - size);
+      journal.readFully(tail);
+    } catch (IOException e) {
+      return 0;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(tail, 0, size);
+    return (int) crc.getValue();
+  }
+
+  // written whole to a temporary file, then renamed over the old one.  the journal is flushed with every commit, so its
+  // length is at the end of a line
+  void save(BloomFilter filter) {
+    File temporary = new File(mFilterFile.getPath() + ".tmp");
+    long journalLength = mJournalFile.length();
+    try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), IO_BUFFER_SIZE))) {
+      outputStream.writeInt(FILTER_MAGIC);
+      outputStream.writeLong(journalLength);
+      outputStream.writeInt(checksumJournalTail(journalLength));
+      filter.writeTo(outputStream);
+    } catch (IOException e) {
+      temporary.delete();
+      return;
+    }
+    if (!temporary.renameTo(mFilterFile)) {
+      temporary.delete();
+    }
+  }
+
+  void delete() {
+    mFilterFile.delete();
+  }
+
+}
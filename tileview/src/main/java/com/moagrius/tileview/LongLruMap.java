@@ -0,0 +1,280 @@
+package com.moagrius.tileview;
+
+import java.util.Arrays;
+
+/**
+ * A map of primitive long keys to values, with open addressing (linear probing) and a doubly linked list through the slots
+ * that keeps entries in access order, eldest first.  Nothing is boxed, and nothing is allocated except when the table grows.
+ *
+ * Not thread safe.  Values may not be null.
+ */
+class LongLruMap<V> {
+
+  private static final int DEFAULT_CAPACITY = 64;
+  static final int NONE = -1;
+
+  private long[] mKeys;
+  private Object[] mValues;
+  private int[] mBefore;
+  private int[] mAfter;
+  private int mMask;
+  private int mSize;
+  private int mHead = NONE;
+  private int mTail = NONE;
+
+  LongLruMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  LongLruMap(int initialCapacity) {
+    // keep the table at most half full so probes stay short
+    allocate(Integer.highestOneBit(Math.max(4, initialCapacity * 2 - 1)) << 1);
+  }
+
+  private void allocate(int capacity) {
+    mKeys = new long[capacity];
+    mValues = new Object[capacity];
+    mBefore = new int[capacity];
+    mAfter = new int[capacity];
+    mMask = capacity - 1;
+  }
+
+  private int indexFor(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & mMask;
+  }
+
+  private int find(long key) {
+    int index = indexFor(key);
+    while (mValues[index] != null) {
+      if (mKeys[index] == key) {
+        return index;
+      }
+      index = (index + 1) & mMask;
+    }
+    return NONE;
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  boolean containsKey(long key) {
+    return find(key) != NONE;
+  }
+
+  /**
+   * Returns the value for the key, and marks it most recently used.
+   */
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    int index = find(key);
+    if (index == NONE) {
+      return null;
+    }
+    unlink(index);
+    linkLast(index);
+    return (V) mValues[index];
+  }
+
+  /**
+   * @return The previous value for the key, or null.
+   */
+  @SuppressWarnings("unchecked")
+  V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("LongLruMap does not accept null values");
+    }
+    int index = find(key);
+    if (index != NONE) {
+      V previous = (V) mValues[index];
+      mValues[index] = value;
+      unlink(index);
+      linkLast(index);
+      return previous;
+    }
+    if ((mSize + 1) * 2 > mKeys.length) {
+      grow();
+    }
+    linkLast(insert(key, value));
+    return null;
+  }
+
+  /**
+   * As put, but the entry becomes the eldest rather than the most recently used - first in line to be evicted.
+   *
+   * @return The previous value for the key, or null.
+   */
+  @SuppressWarnings("unchecked")
+  V putEldest(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("LongLruMap does not accept null values");
+    }
+    int index = find(key);
+    if (index != NONE) {
+      V previous = (V) mValues[index];
+      mValues[index] = value;
+      unlink(index);
+      linkFirst(index);
+      return previous;
+    }
+    if ((mSize + 1) * 2 > mKeys.length) {
+      grow();
+    }
+    linkFirst(insert(key, value));
+    return null;
+  }
+
+  // unlinked - the caller links it at whichever end it belongs
+  private int insert(long key, Object value) {
+    int index = indexFor(key);
+    while (mValues[index] != null) {
+      index = (index + 1) & mMask;
+    }
+    mKeys[index] = key;
+    mValues[index] = value;
+    mSize++;
+    return index;
+  }
+
+  @SuppressWarnings("unchecked")
+  V remove(long key) {
+    int index = find(key);
+    if (index == NONE) {
+      return null;
+    }
+    V value = (V) mValues[index];
+    removeAt(index);
+    return value;
+  }
+
+  /**
+   * @return The key of the least recently used entry.  Only valid if not empty.
+   */
+  long eldestKey() {
+    return mKeys[mHead];
+  }
+
+  // slot cursor, eldest to newest, so callers can walk entries without an iterator.  don't modify the map while walking -
+  // removing pulls later entries back into the gap, so even the slot after the one removed may no longer be what it was
+  int eldestSlot() {
+    return mHead;
+  }
+
+  int newerSlot(int slot) {
+    return mAfter[slot];
+  }
+
+  long keyAt(int slot) {
+    return mKeys[slot];
+  }
+
+  @SuppressWarnings("unchecked")
+  V valueAt(int slot) {
+    return (V) mValues[slot];
+  }
+
+  void clear() {
+    Arrays.fill(mValues, null);
+    mSize = 0;
+    mHead = NONE;
+    mTail = NONE;
+  }
+
+  private void linkLast(int index) {
+    mBefore[index] = mTail;
+    mAfter[index] = NONE;
+    if (mTail == NONE) {
+      mHead = index;
+    } else {
+      mAfter[mTail] = index;
+    }
+    mTail = index;
+  }
+
+  private void linkFirst(int index) {
+    mBefore[index] = NONE;
+    mAfter[index] = mHead;
+    if (mHead == NONE) {
+      mTail = index;
+    } else {
+      mBefore[mHead] = index;
+    }
+    mHead = index;
+  }
+
+  private void unlink(int index) {
+    int before = mBefore[index];
+    int after = mAfter[index];
+    if (before == NONE) {
+      mHead = after;
+    } else {
+      mAfter[before] = after;
+    }
+    if (after == NONE) {
+      mTail = before;
+    } else {
+      mBefore[after] = before;
+    }
+  }
+
+  // backward shift deletion - rather than leave a tombstone, pull later entries of the same probe run into the gap
+  private void removeAt(int index) {
+    unlink(index);
+    mValues[index] = null;
+    mSize--;
+    int gap = index;
+    int next = (gap + 1) & mMask;
+    while (mValues[next] != null) {
+      int ideal = indexFor(mKeys[next]);
+      // the entry can move back to the gap only if the gap is between where it wants to be and where it is (cyclically)
+      boolean canMove = gap <= next ? (ideal <= gap || ideal > next) : (ideal <= gap && ideal > next);
+      if (canMove) {
+        move(next, gap);
+        gap = next;
+      }
+      next = (next + 1) & mMask;
+    }
+  }
+
+  private void move(int from, int to) {
+    mKeys[to] = mKeys[from];
+    mValues[to] = mValues[from];
+    int before = mBefore[from];
+    int after = mAfter[from];
+    mBefore[to] = before;
+    mAfter[to] = after;
+    if (before == NONE) {
+      mHead = to;
+    } else {
+      mAfter[before] = to;
+    }
+    if (after == NONE) {
+      mTail = to;
+    } else {
+      mBefore[after] = to;
+    }
+    mValues[from] = null;
+  }
+
+  // rehash in access order, so the order survives
+  private void grow() {
+    long[] keys = mKeys;
+    Object[] values = mValues;
+    int[] after = mAfter;
+    int slot = mHead;
+    allocate(keys.length << 1);
+    mSize = 0;
+    mHead = NONE;
+    mTail = NONE;
+    while (slot != NONE) {
+      linkLast(insert(keys[slot], values[slot]));
+      slot = after[slot];
+    }
+  }
+
+}
@@ -1,21 +1,12 @@
 package com.moagrius.tileview;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
-import android.os.Build;
-import android.util.Log;
-
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-
 /**
- * Implementation of LRU cache (String to Bitmap) with a method to grab the oldest Bitmap.
+ * Implementation of LRU cache (packed TileKey to TileBitmap).  Evicted bitmaps are released, and go back to the bitmap
+ * pool once nothing else is drawing them.
  */
-public class MemoryCache implements TileView.BitmapCache, TileView.BitmapPool {
+public class MemoryCache implements TileView.TileCache {
 
-  private LinkedHashMap<String, Bitmap> mMap = new LinkedHashMap<>(0, 0.75f, true);
+  private LongLruMap<TileBitmap> mMap = new LongLruMap<>();
   private int mMaxSize;
   private int mSize;
 
@@ -24,97 +15,66 @@ public class MemoryCache implements TileView.BitmapCache, TileView.BitmapPool {
   }
 
   @Override
-  public synchronized Bitmap get(String key) {
-    return mMap.get(key);
+  public synchronized TileBitmap get(long key) {
+    TileBitmap bitmap = mMap.get(key);
+    if (bitmap != null && bitmap.acquire()) {
+      return bitmap;
+    }
+    return null;
   }
 
   @Override
-  public synchronized Bitmap put(String key, Bitmap value) {
+  public synchronized void put(long key, TileBitmap value) {
+    put(key, value, false);
+  }
+
+  @Override
+  public synchronized void putEldest(long key, TileBitmap value) {
+    put(key, value, true);
+  }
+
+  private void put(long key, TileBitmap value, boolean isEldest) {
     if (value == null) {
-      return null;
+      return;
     }
-    if (value.getConfig() == null) {
-      return null;
+    if (!value.isCacheable()) {
+      value.release();
+      return;
     }
     mSize += sizeOf(value);
-    Bitmap previous = mMap.put(key, value);
+    TileBitmap previous = isEldest ? mMap.putEldest(key, value) : mMap.put(key, value);
     if (previous != null) {
       mSize -= sizeOf(previous);
+      // if it's the one we already had, we only need the one reference
+      previous.release();
     }
     trimToSize(mMaxSize);
-    return previous;
   }
 
   @Override
-  public synchronized Bitmap remove(String key) {
-    if (mMap.containsKey(key)) {
-      Bitmap bitmap = mMap.get(key);
+  public synchronized void remove(long key) {
+    TileBitmap bitmap = mMap.remove(key);
+    if (bitmap != null) {
       mSize -= sizeOf(bitmap);
-      mMap.remove(key);
-      return bitmap;
+      bitmap.release();
     }
-    return null;
-  }
-
-  private void trimToSize(int maxSize) {
-    while (mSize > maxSize && !mMap.isEmpty()) {
-      Map.Entry<String, Bitmap> oldest =  mMap.entrySet().iterator().next();
-      if (oldest == null) {
-        break;
-      }
-      mMap.remove(oldest.getKey());
-      mSize -= sizeOf(oldest.getValue());
-    }
-  }
-
-  private int sizeOf(Bitmap bitmap) {
-    return bitmap.getByteCount() / 1024;
   }
 
   @Override
-  public synchronized Bitmap getBitmapForReuse(Tile tile) {
-    if (mMap.isEmpty()) {
-      return null;
-    }
-    BitmapFactory.Options options = tile.getMeasureOptions();
-    Iterator<Bitmap> iterator = mMap.values().iterator();
-    while (iterator.hasNext()) {
-      Bitmap candidate = iterator.next();
-      if (candidate == null) {
-        break;
-      }
-      if (qualifies(candidate, options)) {
-        Log.d("TV", "got a qualfied bitmap");
-        iterator.remove();
-        mSize -= sizeOf(candidate);
-        candidate.eraseColor(Color.BLACK);
-        return candidate;
-      }
-    }
-    return null;
+  public synchronized void trim(float fraction) {
+    trimToSize((int) (mMaxSize * fraction));
   }
 
-  private static boolean qualifies(Bitmap candidate, BitmapFactory.Options targetOptions) {
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-      int width = targetOptions.outWidth / targetOptions.inSampleSize;
-      int height = targetOptions.outHeight / targetOptions.inSampleSize;
-      int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-      return byteCount <= candidate.getAllocationByteCount();
+  private void trimToSize(int maxSize) {
+    while (mSize > maxSize && !mMap.isEmpty()) {
+      TileBitmap oldest = mMap.remove(mMap.eldestKey());
+      mSize -= sizeOf(oldest);
+      oldest.release();
     }
-    return candidate.getWidth() == targetOptions.outWidth
-        && candidate.getHeight() == targetOptions.outHeight
-        && targetOptions.inSampleSize == 1;
   }
 
-  private static int getBytesPerPixel(Bitmap.Config config) {
-    switch (config) {
-      case ARGB_8888:
-        return 4;
-      case RGB_565:
-      case ARGB_4444:
-        return 2;
-    }
-    return 1;
+  private int sizeOf(TileBitmap bitmap) {
+    return bitmap.getSize();
   }
 
-}
\ No newline at end of file
+}
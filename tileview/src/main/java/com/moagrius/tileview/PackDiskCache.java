@@ -0,0 +1,560 @@
+package com.moagrius.tileview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.moagrius.tileview.io.ByteBufferInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A disk cache that packs every entry into a few large, memory mapped segment files rather than a file per tile, with the
+ * index (key to segment, offset and length) kept in memory.  There's no journal - on open, the index is rebuilt by walking
+ * the record headers of each segment, which only touches a few bytes per entry.  Reads are slices of the mapping, so
+ * there's no open, read or close per tile.
+ *
+ * Entries are appended to the newest segment.  Removing an entry only drops it from the index, so when a full segment is
+ * mostly dead, its live entries are copied forward and the segment is deleted.  When over budget, the oldest segment is
+ * dropped whole.
+ *
+ * Each record is a header (key, length, and a CRC of the bytes) followed by the bytes.  A length of 0 marks the end of a
+ * segment.  Only the newest segment can have a torn write after a crash, so only its records are checked against their
+ * CRCs on open; older segments are forced to disk when they fill.
+ *
+ * Optionally, patches are stored as their raw pixels (a small header of width, height and config, then the pixels as
+ * {@link Bitmap#copyPixelsToBuffer} writes them), so reading one back is a copy from the mapping into a bitmap rather
+ * than a decode.  Raw patches are several times the size of a PNG, so fewer fit in the same budget.  They're keyed with
+ * the sign bit set, which TileKey never uses, so they share the index without colliding with encoded entries.
+ */
+public class PackDiskCache implements TileView.BitmapCache {
+
+  private static final String DIRECTORY_NAME = "tileview-pack";
+  private static final String SEGMENT_PREFIX = "pack-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+  private static final int HEADER_SIZE = 8 + 4 + 4;
+  private static final int PIXEL_HEADER_SIZE = 4 + 4 + 4;
+  private static final long PIXELS_FLAG = Long.MIN_VALUE;
+  // segments are a quarter of the budget (so there's always an older one to compact or drop), between room for a few
+  // encoded tiles and what 24 bits of offset can address.  a raw patch that doesn't fit a segment is encoded instead
+  private static final int MIN_SEGMENT_SIZE = 16 * 1024;
+  private static final int MAX_SEGMENT_SIZE = 1 << 24;
+  private static final int MIN_SEGMENT_COUNT = 4;
+  private static final int COMPACTION_LIVE_PERCENT = 50;
+  private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+  // an index entry packs the segment id in the high 16 bits, then 24 bits of offset and 24 of length
+  private static final int MAX_SEGMENT_ID = (1 << 16) - 1;
+  private static final int OFFSET_BITS = 24;
+  private static final int LENGTH_BITS = 24;
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+  private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+
+  private final File mDirectory;
+  private final long mMaxSize;
+  private final int mSegmentSize;
+  private final TileView.DiskCacheFormat mFormat;
+  private final boolean mStoresPixels;
+  private final List<Segment> mSegments = new ArrayList<>();
+  private final LongLruMap<Long> mIndex = new LongLruMap<>();
+  private final CRC32 mCrc = new CRC32();
+  private int mNextSegmentId;
+  private boolean mIsClosed;
+
+  public PackDiskCache(Context context, long maxSize) throws IOException {
+    this(context, maxSize, TileView.DiskCacheFormat.SOURCE, false);
+  }
+
+  /**
+   * @param maxSize Budget, in bytes, for every segment together - at least 64KB.  Raw 256 pixel ARGB_8888 patches need
+   *                segments of 1MB or more, so a budget of at least 4MB.
+   * @param storesPixels True to store patches as raw pixels.
+   */
+  public PackDiskCache(Context context, long maxSize, TileView.DiskCacheFormat format, boolean storesPixels) throws IOException {
+    this(context, maxSize, format, storesPixels, null);
+  }
+
+  /**
+   * @param name Tells apart the caches of different images, each in a directory of its own.
+   */
+  public PackDiskCache(Context context, long maxSize, TileView.DiskCacheFormat format, boolean storesPixels, String name) throws IOException {
+    this(new File(context.getCacheDir(), name == null ? DIRECTORY_NAME : DIRECTORY_NAME + "-" + name), maxSize, format, storesPixels);
+  }
+
+  PackDiskCache(File directory, long maxSize, TileView.DiskCacheFormat format, boolean storesPixels) throws IOException {
+    mDirectory = directory;
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      throw new IOException("Unable to create " + mDirectory);
+    }
+    // any less, and each new segment would push the last one out, so nothing would ever be compacted
+    if (maxSize < (long) MIN_SEGMENT_COUNT * MIN_SEGMENT_SIZE) {
+      throw new IllegalArgumentException("A pack disk cache needs at least " + MIN_SEGMENT_COUNT * MIN_SEGMENT_SIZE + " bytes, not " + maxSize);
+    }
+    mMaxSize = maxSize;
+    mSegmentSize = (int) Math.min(MAX_SEGMENT_SIZE, maxSize / MIN_SEGMENT_COUNT);
+    mFormat = format;
+    mStoresPixels = storesPixels;
+    open();
+  }
+
+  // the namespace only lasts as long as the process, so it's no part of anything on disk - the directory tells images apart
+  private static long toDiskKey(long key) {
+    return TileKey.pack(TileKey.getZoom(key), TileKey.getSample(key), TileKey.getColumn(key), TileKey.getRow(key));
+  }
+
+  static long packLocation(int segmentId, int offset, int length) {
+    return ((long) segmentId << (OFFSET_BITS + LENGTH_BITS)) | ((long) offset << LENGTH_BITS) | length;
+  }
+
+  static int getSegmentId(long location) {
+    return (int) (location >>> (OFFSET_BITS + LENGTH_BITS));
+  }
+
+  static int getOffset(long location) {
+    return (int) ((location >>> LENGTH_BITS) & OFFSET_MASK);
+  }
+
+  static int getLength(long location) {
+    return (int) (location & LENGTH_MASK);
+  }
+
+  private void open() throws IOException {
+    File[] files = mDirectory.listFiles();
+    List<Integer> ids = new ArrayList<>();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          try {
+            ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+          } catch (NumberFormatException e) {
+            // not ours
+          }
+        }
+      }
+    }
+    int[] sorted = new int[ids.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = ids.get(i);
+    }
+    Arrays.sort(sorted);
+    // ids only ever go up, so once they've gone far enough, number what's left from 0 again (in the same order)
+    if (sorted.length > 0 && sorted[sorted.length - 1] > MAX_SEGMENT_ID / 2) {
+      for (int i = 0; i < sorted.length; i++) {
+        if (getSegmentFile(sorted[i]).renameTo(getSegmentFile(i))) {
+          sorted[i] = i;
+        }
+      }
+    }
+    for (int i = 0; i < sorted.length; i++) {
+      Segment segment;
+      try {
+        segment = new Segment(sorted[i], getSegmentFile(sorted[i]), mSegmentSize);
+      } catch (IOException e) {
+        // written with a different segment size, or unreadable - either way, it's nothing we can use
+        getSegmentFile(sorted[i]).delete();
+        continue;
+      }
+      mSegments.add(segment);
+      scan(segment, i == sorted.length - 1);
+      mNextSegmentId = sorted[i] + 1;
+    }
+    if (mSegments.isEmpty()) {
+      addSegment();
+    }
+    evict();
+  }
+
+  // rebuild the index from the segment's headers.  later records (and segments) win
+  private void scan(Segment segment, boolean verify) {
+    ByteBuffer buffer = segment.mBuffer.duplicate();
+    int offset = 0;
+    while (offset + HEADER_SIZE <= segment.mCapacity) {
+      long key = buffer.getLong(offset);
+      int length = buffer.getInt(offset + 8);
+      int crc = buffer.getInt(offset + 12);
+      if (length <= 0 || length > LENGTH_MASK || offset + HEADER_SIZE + length > segment.mCapacity) {
+        break;
+      }
+      if (verify && crc != checksum(buffer, offset + HEADER_SIZE, length)) {
+        break;
+      }
+      put(key, segment, offset, length);
+      offset += HEADER_SIZE + length;
+    }
+    segment.mEnd = offset;
+    // anything after a torn record is unreachable, so make sure the next open stops here too
+    if (offset + HEADER_SIZE <= segment.mCapacity) {
+      buffer.putInt(offset + 8, 0);
+    }
+  }
+
+  private int checksum(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(offset + length);
+    slice.position(offset);
+    mCrc.reset();
+    byte[] chunk = new byte[Math.min(length, IO_BUFFER_SIZE)];
+    while (slice.hasRemaining()) {
+      int count = Math.min(chunk.length, slice.remaining());
+      slice.get(chunk, 0, count);
+      mCrc.update(chunk, 0, count);
+    }
+    return (int) mCrc.getValue();
+  }
+
+  private void put(long key, Segment segment, int offset, int length) {
+    Long previous = mIndex.put(key, packLocation(segment.mId, offset, length));
+    segment.mLiveBytes += HEADER_SIZE + length;
+    if (previous != null) {
+      Segment owner = getSegment(getSegmentId(previous));
+      if (owner != null) {
+        owner.mLiveBytes -= HEADER_SIZE + getLength(previous);
+      }
+    }
+  }
+
+  private File getSegmentFile(int id) {
+    return new File(mDirectory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+  }
+
+  private Segment getSegment(int id) {
+    for (Segment segment : mSegments) {
+      if (segment.mId == id) {
+        return segment;
+      }
+    }
+    return null;
+  }
+
+  private Segment getActiveSegment() {
+    return mSegments.get(mSegments.size() - 1);
+  }
+
+  private Segment addSegment() throws IOException {
+    if (mNextSegmentId > MAX_SEGMENT_ID) {
+      throw new IOException("Out of segment ids until the cache is opened again");
+    }
+    int id = mNextSegmentId++;
+    Segment segment = new Segment(id, getSegmentFile(id), mSegmentSize);
+    mSegments.add(segment);
+    return segment;
+  }
+
+  // a slice of the mapping, so the bytes are never copied onto the heap here
+  private synchronized ByteBuffer find(long diskKey) {
+    Long location = mIndex.get(diskKey);
+    if (location == null) {
+      return null;
+    }
+    Segment segment = getSegment(getSegmentId(location));
+    if (segment == null) {
+      return null;
+    }
+    int offset = getOffset(location) + HEADER_SIZE;
+    ByteBuffer slice = segment.mBuffer.duplicate();
+    slice.limit(offset + getLength(location));
+    slice.position(offset);
+    return slice.slice();
+  }
+
+  @Override
+  public InputStream openStream(long key) {
+    ByteBuffer slice = find(toDiskKey(key));
+    return slice == null ? null : new ByteBufferInputStream(slice);
+  }
+
+  @Override
+  public Bitmap get(long key) {
+    InputStream stream = openStream(key);
+    return stream == null ? null : BitmapFactory.decodeStream(stream);
+  }
+
+  @Override
+  public Bitmap put(long key, Bitmap data) {
+    if (data == null || contains(toDiskKey(key))) {
+      return data;
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+    if (data.compress(Bitmap.CompressFormat.PNG, 0, outputStream)) {
+      byte[] bytes = outputStream.toByteArray();
+      append(key, bytes, 0, bytes.length);
+    }
+    return data;
+  }
+
+  @Override
+  public boolean putEncoded(long key, byte[] bytes, int offset, int length) {
+    if (mFormat != TileView.DiskCacheFormat.SOURCE) {
+      return false;
+    }
+    if (!contains(toDiskKey(key))) {
+      append(key, bytes, offset, length);
+    }
+    return true;
+  }
+
+  @Override
+  public boolean hasPixels(long key) {
+    return mStoresPixels && contains(toDiskKey(key) | PIXELS_FLAG);
+  }
+
+  // straight from the bitmap into the mapping.  false if it wasn't stored, so the caller can fall back to encoding it
+  @Override
+  public synchronized boolean putPixels(long key, Bitmap bitmap) {
+    if (mIsClosed || !mStoresPixels || bitmap == null || bitmap.getConfig() == null) {
+      return false;
+    }
+    long diskKey = toDiskKey(key) | PIXELS_FLAG;
+    if (mIndex.containsKey(diskKey)) {
+      return true;
+    }
+    int length = PIXEL_HEADER_SIZE + bitmap.getByteCount();
+    if (HEADER_SIZE + length > mSegmentSize) {
+      return false;
+    }
+    try {
+      Segment segment = ensureRoom(length);
+      int start = segment.mEnd + HEADER_SIZE;
+      ByteBuffer buffer = segment.mBuffer.duplicate();
+      buffer.putInt(start, bitmap.getWidth());
+      buffer.putInt(start + 4, bitmap.getHeight());
+      buffer.putInt(start + 8, bitmap.getConfig().ordinal());
+      buffer.limit(start + length);
+      buffer.position(start + PIXEL_HEADER_SIZE);
+      bitmap.copyPixelsToBuffer(buffer);
+      commit(diskKey, segment, length, checksum(segment.mBuffer, start, length));
+      evict();
+      return true;
+    } catch (Exception e) {
+      // nothing's committed until the length is written, so whatever got copied is just room the next record reuses
+      return false;
+    }
+  }
+
+  // the bitmap is reconfigured to the stored size, if its allocation is big enough and its config matches
+  @Override
+  public boolean getPixels(long key, Bitmap bitmap) {
+    if (!mStoresPixels) {
+      return false;
+    }
+    ByteBuffer slice = find(toDiskKey(key) | PIXELS_FLAG);
+    if (slice == null || slice.remaining() < PIXEL_HEADER_SIZE) {
+      return false;
+    }
+    int width = slice.getInt(0);
+    int height = slice.getInt(4);
+    int ordinal = slice.getInt(8);
+    Bitmap.Config config = bitmap.getConfig();
+    if (config == null || ordinal != config.ordinal() || width <= 0 || height <= 0) {
+      return false;
+    }
+    // the record has to be exactly the pixels its header describes, and fit the allocation, before anything's reconfigured -
+    // otherwise a bad record would leave the bitmap resized to something it can't hold
+    int byteCount = slice.remaining() - PIXEL_HEADER_SIZE;
+    long bytesPerPixel = bitmap.getByteCount() / ((long) bitmap.getWidth() * bitmap.getHeight());
+    if (byteCount != width * (long) height * bytesPerPixel || byteCount > bitmap.getAllocationByteCount()) {
+      return false;
+    }
+    if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+      bitmap.reconfigure(width, height, config);
+    }
+    slice.position(PIXEL_HEADER_SIZE);
+    bitmap.copyPixelsFromBuffer(slice);
+    return true;
+  }
+
+  @Override
+  public synchronized Bitmap remove(long key) {
+    long diskKey = toDiskKey(key);
+    removeIndexed(diskKey);
+    removeIndexed(diskKey | PIXELS_FLAG);
+    return null;
+  }
+
+  private void removeIndexed(long indexKey) {
+    Long location = mIndex.remove(indexKey);
+    if (location != null) {
+      Segment segment = getSegment(getSegmentId(location));
+      if (segment != null) {
+        segment.mLiveBytes -= HEADER_SIZE + getLength(location);
+      }
+    }
+  }
+
+  private synchronized boolean contains(long diskKey) {
+    return mIndex.containsKey(diskKey);
+  }
+
+  private synchronized void append(long key, byte[] bytes, int offset, int length) {
+    if (mIsClosed || length <= 0 || HEADER_SIZE + length > mSegmentSize) {
+      return;
+    }
+    try {
+      write(toDiskKey(key), bytes, offset, length);
+      evict();
+    } catch (IOException e) {
+      // no op
+    }
+  }
+
+  private void write(long key, byte[] bytes, int offset, int length) throws IOException {
+    Segment segment = ensureRoom(length);
+    ByteBuffer buffer = segment.mBuffer.duplicate();
+    buffer.position(segment.mEnd + HEADER_SIZE);
+    buffer.put(bytes, offset, length);
+    mCrc.reset();
+    mCrc.update(bytes, offset, length);
+    commit(key, segment, length, (int) mCrc.getValue());
+  }
+
+  // the record's bytes are already in place after the header
+  private void commit(long key, Segment segment, int length, int crc) {
+    int position = segment.mEnd;
+    ByteBuffer buffer = segment.mBuffer.duplicate();
+    buffer.putLong(position, key);
+    buffer.putInt(position + 12, crc);
+    // the length goes last - until it's there, this is still the end of the segment
+    buffer.putInt(position + 8, length);
+    segment.mEnd = position + HEADER_SIZE + length;
+    put(key, segment, position, length);
+  }
+
+  // the active segment, if the record fits, otherwise a new one (the full one is forced to disk, and older segments that
+  // are mostly dead are compacted into the new one)
+  private Segment ensureRoom(int length) throws IOException {
+    Segment active = getActiveSegment();
+    if (active.mEnd + HEADER_SIZE + length <= active.mCapacity) {
+      return active;
+    }
+    active.mBuffer.force();
+    Segment segment = addSegment();
+    compact(segment);
+    return segment;
+  }
+
+  // only into room the new segment has - anything that doesn't fit stays where it is for now
+  private void compact(Segment destination) {
+    for (int i = 0; i < mSegments.size() - 2; i++) {
+      Segment segment = mSegments.get(i);
+      if (segment.mLiveBytes * 100 >= segment.mEnd * COMPACTION_LIVE_PERCENT) {
+        continue;
+      }
+      if (destination.mEnd + segment.mLiveBytes > destination.mCapacity) {
+        return;
+      }
+      ByteBuffer buffer = segment.mBuffer.duplicate();
+      int offset = 0;
+      while (offset < segment.mEnd) {
+        long key = buffer.getLong(offset);
+        int length = buffer.getInt(offset + 8);
+        Long location = mIndex.get(key);
+        if (location != null && getSegmentId(location) == segment.mId && getOffset(location) == offset) {
+          byte[] bytes = new byte[length];
+          buffer.position(offset + HEADER_SIZE);
+          buffer.get(bytes);
+          try {
+            write(key, bytes, 0, length);
+          } catch (IOException e) {
+            // no op
+          }
+        }
+        offset += HEADER_SIZE + length;
+      }
+      dropSegment(i);
+      i--;
+    }
+  }
+
+  private void evict() {
+    while (mSegments.size() > 1 && (long) mSegments.size() * mSegmentSize > mMaxSize) {
+      dropSegment(0);
+    }
+  }
+
+  // entries the index still points here for are gone
+  private void dropSegment(int index) {
+    Segment segment = mSegments.remove(index);
+    ByteBuffer buffer = segment.mBuffer.duplicate();
+    int offset = 0;
+    while (offset < segment.mEnd) {
+      long key = buffer.getLong(offset);
+      int length = buffer.getInt(offset + 8);
+      Long location = mIndex.get(key);
+      if (location != null && getSegmentId(location) == segment.mId) {
+        mIndex.remove(key);
+      }
+      offset += HEADER_SIZE + length;
+    }
+    // readers holding a slice keep the mapping alive after the file is gone
+    segment.mFile.delete();
+  }
+
+  // the newest segment is forced to disk (the rest already were when they filled), and the mappings are let go of - they're
+  // unmapped once nothing holds a slice of them
+  @Override
+  public synchronized void close() {
+    if (mIsClosed) {
+      return;
+    }
+    mIsClosed = true;
+    if (!mSegments.isEmpty()) {
+      getActiveSegment().mBuffer.force();
+    }
+    mSegments.clear();
+    mIndex.clear();
+  }
+
+  public synchronized void clear() {
+    if (mIsClosed) {
+      return;
+    }
+    for (Segment segment : mSegments) {
+      segment.mFile.delete();
+    }
+    mSegments.clear();
+    mIndex.clear();
+    try {
+      addSegment();
+    } catch (IOException e) {
+      // no op
+    }
+  }
+
+  private static class Segment {
+
+    final int mId;
+    final File mFile;
+    final int mCapacity;
+    final MappedByteBuffer mBuffer;
+    int mEnd;
+    int mLiveBytes;
+
+    Segment(int id, File file, int capacity) throws IOException {
+      mId = id;
+      mFile = file;
+      mCapacity = capacity;
+      try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+        long length = randomAccessFile.length();
+        if (length != 0 && length != capacity) {
+          throw new IOException("Segment " + file + " is " + length + " bytes, expected " + capacity);
+        }
+        // the mapping outlives the channel
+        mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      }
+    }
+
+  }
+
+}
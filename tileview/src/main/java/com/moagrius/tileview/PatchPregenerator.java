@@ -0,0 +1,347 @@
+package com.moagrius.tileview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.moagrius.tileview.io.StreamProvider;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders patches for zoom levels without a detail level of their own into the disk cache ahead of time, so zooming out
+ * reads one cached patch per tile instead of decoding a patch's worth of source tiles.  Runs on a single lowest priority
+ * thread, and only while the view isn't rendering tiles - it waits whenever tiles are queued or decoding, or have been
+ * recently.
+ *
+ * Levels are walked from the least sampled (most patches) to the most, row by row, so each level is built from the one
+ * before it.  Where it got to is saved every so often, so the next launch picks up from there rather than checking every
+ * patch again.
+ */
+class PatchPregenerator implements Runnable {
+
+  private static final String PROGRESS_FILE_PREFIX = "tileview-pregenerate-";
+  private static final int PROGRESS_VERSION = 1;
+  private static final int SAVE_INTERVAL = 16;
+  private static final long IDLE_POLL_MS = 500;
+  // long enough for the source tile being decoded to finish, since the thread only checks for interrupts between them
+  private static final long STOP_TIMEOUT_MS = 500;
+  private static final Paint SCALING_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+  private final Context mContext;
+  private final TileView mTileView;
+  private final StreamProvider mStreamProvider;
+  private final TileView.BitmapCache mDiskCache;
+  private final int mTileSize;
+  private final Bitmap.Config mBitmapConfig;
+  private final List<Level> mLevels;
+  private final File mProgressFile;
+  private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+  private final EncodedBuffer mPiece = new EncodedBuffer();
+  private final Rect mRect = new Rect();
+
+  private Thread mThread;
+  private boolean mIsStopped;
+  private Bitmap mPatch;
+  private Canvas mCanvas;
+  private Bitmap mPixels;
+
+  /**
+   * @param levels The detail level each patched zoom level reads from, and the image sample for it.
+   */
+  PatchPregenerator(TileView tileView, StreamProvider streamProvider, TileView.BitmapCache diskCache, int tileSize, Bitmap.Config bitmapConfig, List<Level> levels) {
+    mContext = tileView.getContext().getApplicationContext();
+    mTileView = tileView;
+    mStreamProvider = streamProvider;
+    mDiskCache = diskCache;
+    mTileSize = tileSize;
+    mBitmapConfig = bitmapConfig;
+    mLevels = levels;
+    // the same levels of the same image pick up where they left off
+    int hash = tileSize;
+    for (Level level : levels) {
+      hash = hash * 31 + level.mDetail.getZoom();
+      hash = hash * 31 + level.mDetail.getData().hashCode();
+      hash = hash * 31 + level.mImageSample;
+      hash = hash * 31 + level.mColumns;
+      hash = hash * 31 + level.mRows;
+    }
+    mProgressFile = new File(mContext.getCacheDir(), PROGRESS_FILE_PREFIX + Integer.toHexString(hash));
+    mOptions.inPreferredConfig = bitmapConfig;
+    mOptions.inMutable = true;
+  }
+
+  // may be called from whichever thread opened the disk cache
+  synchronized void start() {
+    if (mThread == null && !mIsStopped && !mLevels.isEmpty()) {
+      mThread = new Thread(this, "tileview-pregenerate");
+      mThread.start();
+    }
+  }
+
+  // the disk cache is closed right after this, so wait (for a while) for the thread to let go of it
+  void stop() {
+    Thread thread;
+    synchronized (this) {
+      mIsStopped = true;
+      thread = mThread;
+      mThread = null;
+    }
+    if (thread == null) {
+      return;
+    }
+    thread.interrupt();
+    try {
+      thread.join(STOP_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+    Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+    int[] progress = loadProgress();
+    int levelIndex = progress[0];
+    int patchIndex = progress[1];
+    int sinceSave = 0;
+    try {
+      for (; levelIndex < mLevels.size(); levelIndex++, patchIndex = 0) {
+        Level level = mLevels.get(levelIndex);
+        int count = level.mColumns * level.mRows;
+        for (; patchIndex < count; patchIndex++) {
+          waitUntilIdle();
+          int column = (patchIndex % level.mColumns) * level.mImageSample;
+          int row = (patchIndex / level.mColumns) * level.mImageSample;
+          generate(level, column, row);
+          if (++sinceSave == SAVE_INTERVAL) {
+            saveProgress(levelIndex, patchIndex + 1);
+            sinceSave = 0;
+          }
+        }
+      }
+      saveProgress(levelIndex, 0);
+    } catch (InterruptedException e) {
+      saveProgress(levelIndex, patchIndex);
+    } catch (RuntimeException e) {
+      // most likely the disk cache, closed under us because stop gave up waiting.  what was saved last is still good
+    } finally {
+      mPatch = null;
+      mCanvas = null;
+      mPixels = null;
+    }
+  }
+
+  // only started once the disk cache is open, so the view's rendering is all there is to wait on
+  private void waitUntilIdle() throws InterruptedException {
+    while (true) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedException();
+      }
+      if (!mTileView.isRenderingTiles(SystemClock.uptimeMillis())) {
+        return;
+      }
+      Thread.sleep(IDLE_POLL_MS);
+    }
+  }
+
+  // the same composition a tile does for a patch.  levels are walked in order of sample, so the four patches at half this
+  // one's sample are usually already on disk, and only what isn't falls back to the source tiles
+  private void generate(Level level, int column, int row) throws InterruptedException {
+    Detail detail = level.mDetail;
+    long key = TileKey.pack(detail.getNamespace(), detail.getZoom(), level.mImageSample, column, row);
+    if (isCached(key)) {
+      return;
+    }
+    if (mPatch == null) {
+      mPatch = Bitmap.createBitmap(mTileSize, mTileSize, mBitmapConfig);
+      mCanvas = new Canvas(mPatch);
+    }
+    mPatch.eraseColor(Color.TRANSPARENT);
+    mOptions.inSampleSize = level.mImageSample;
+    int half = level.mImageSample / 2;
+    int halfSize = mTileSize / 2;
+    for (int i = 0; i < 2; i++) {
+      for (int j = 0; j < 2; j++) {
+        int quadrantColumn = column + j * half;
+        int quadrantRow = row + i * half;
+        if (half > 1 && drawCached(TileKey.pack(detail.getNamespace(), detail.getZoom(), half, quadrantColumn, quadrantRow), j * halfSize, i * halfSize, halfSize)) {
+          continue;
+        }
+        drawSource(level, quadrantColumn, quadrantRow, half, column, row);
+      }
+    }
+    // both copy or encode before returning, so the bitmap is ours to draw the next patch into
+    if (!mDiskCache.putPixels(key, mPatch)) {
+      mDiskCache.put(key, mPatch);
+    }
+  }
+
+  private boolean drawCached(long key, int left, int top, int size) {
+    Bitmap cached = null;
+    if (mDiskCache.hasPixels(key)) {
+      if (mPixels == null) {
+        mPixels = Bitmap.createBitmap(mTileSize, mTileSize, mBitmapConfig);
+      }
+      if (mDiskCache.getPixels(key, mPixels)) {
+        cached = mPixels;
+      }
+    }
+    if (cached == null) {
+      cached = mDiskCache.get(key);
+    }
+    if (cached == null) {
+      return false;
+    }
+    mRect.set(left, top, left + size, top + size);
+    mCanvas.drawBitmap(cached, null, mRect, SCALING_PAINT);
+    if (cached != mPixels) {
+      cached.recycle();
+    }
+    return true;
+  }
+
+  // every source tile in a quadrant, each at the patch's sample
+  private void drawSource(Level level, int column, int row, int span, int patchColumn, int patchRow) throws InterruptedException {
+    int size = mTileSize / level.mImageSample;
+    for (int i = 0; i < span; i++) {
+      for (int j = 0; j < span; j++) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedException();
+        }
+        Bitmap piece = decode(column + j, row + i, level.mDetail.getData());
+        if (piece != null) {
+          mCanvas.drawBitmap(piece, (column + j - patchColumn) * size, (row + i - patchRow) * size, null);
+          piece.recycle();
+        }
+      }
+    }
+  }
+
+  private boolean isCached(long key) {
+    if (mDiskCache.hasPixels(key)) {
+      return true;
+    }
+    InputStream stream = mDiskCache.openStream(key);
+    if (stream == null) {
+      return false;
+    }
+    try {
+      stream.close();
+    } catch (IOException e) {
+      // no op
+    }
+    return true;
+  }
+
+  private Bitmap decode(int column, int row, Object data) {
+    try {
+      mPiece.readFrom(mStreamProvider.getStream(column, row, mContext, data));
+    } catch (Exception e) {
+      return null;
+    }
+    if (mPiece.isEmpty()) {
+      return null;
+    }
+    return BitmapFactory.decodeByteArray(mPiece.getBytes(), 0, mPiece.getLength(), mOptions);
+  }
+
+  private int[] loadProgress() {
+    int[] progress = new int[2];
+    if (!mProgressFile.exists()) {
+      return progress;
+    }
+    try (DataInputStream inputStream = new DataInputStream(new FileInputStream(mProgressFile))) {
+      if (inputStream.readInt() == PROGRESS_VERSION) {
+        int levelIndex = inputStream.readInt();
+        int patchIndex = inputStream.readInt();
+        if (levelIndex >= 0 && levelIndex <= mLevels.size() && patchIndex >= 0) {
+          progress[0] = levelIndex;
+          progress[1] = patchIndex;
+        }
+      }
+    } catch (IOException e) {
+      // start over - anything already cached is skipped
+    }
+    return progress;
+  }
+
+  private void saveProgress(int levelIndex, int patchIndex) {
+    try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(mProgressFile))) {
+      outputStream.writeInt(PROGRESS_VERSION);
+      outputStream.writeInt(levelIndex);
+      outputStream.writeInt(patchIndex);
+    } catch (IOException e) {
+      // no op
+    }
+  }
+
+  /**
+   * Every zoom level, up to the one where the whole image fits in a single patch, that has no detail level of its own.
+   *
+   * @param details Indexed by zoom, with nulls for zoom levels that aren't defined.
+   * @param width The width of the image at full size.
+   * @param height The height of the image at full size.
+   */
+  static List<Level> getLevels(List<Detail> details, int width, int height, int tileSize) {
+    List<Level> levels = new ArrayList<>();
+    Detail source = null;
+    for (int zoom = 0; ; zoom++) {
+      Detail defined = zoom < details.size() ? details.get(zoom) : null;
+      if (defined != null) {
+        source = defined;
+        continue;
+      }
+      if (source == null) {
+        // no detail level at all
+        if (zoom >= details.size()) {
+          return levels;
+        }
+        continue;
+      }
+      int imageSample = 1 << (zoom - source.getZoom());
+      float cellSize = (float) tileSize * source.getSample();
+      int columns = (int) Math.ceil(width / cellSize);
+      int rows = (int) Math.ceil(height / cellSize);
+      int patchColumns = (columns + imageSample - 1) / imageSample;
+      int patchRows = (rows + imageSample - 1) / imageSample;
+      levels.add(new Level(source, imageSample, patchColumns, patchRows));
+      // a single patch covers everything from here on
+      if ((patchColumns == 1 && patchRows == 1) || imageSample >= tileSize) {
+        return levels;
+      }
+    }
+  }
+
+  static class Level {
+
+    final Detail mDetail;
+    final int mImageSample;
+    final int mColumns;
+    final int mRows;
+
+    Level(Detail detail, int imageSample, int columns, int rows) {
+      mDetail = detail;
+      mImageSample = imageSample;
+      mColumns = columns;
+      mRows = rows;
+    }
+
+  }
+
+}
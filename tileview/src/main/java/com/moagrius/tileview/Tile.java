@@ -4,21 +4,35 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.os.Looper;
 import android.os.Process;
 
 import com.moagrius.tileview.io.StreamProvider;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Tile implements Runnable {
 
   private static final int UNSCALED_SAMPLE_SIZE = 1;
-
+  private static final EncodedBuffer[] NO_PIECES = {};
+  // encoded bytes a patch reads ahead on the io stage.  past this, the rest of its source tiles are read one at a time as
+  // they're decoded, so a patch over dozens of tiles never holds all of them at once
+  private static final int MAX_PATCH_READ_AHEAD_BYTES = 512 * 1024;
+  // cached parts of a patch are drawn at a fraction of their size
+  private static final Paint SCALING_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+  // a tile is owned by exactly one thread at a time, and ownership only changes hands through these transitions:
+  // IDLE -> QUEUED (main, when queued), QUEUED -> DECODING (worker, when picked up), DECODING -> DECODED (worker, when published)
+  // and QUEUED or DECODING -> CANCELLED (main, when destroyed).  whoever owns a tile when it's done with is the one to recycle it
   enum State {
-    IDLE, DECODING, DECODED
+    IDLE, QUEUED, DECODING, DECODED, CANCELLED
   }
 
   // variable (settable)
@@ -28,34 +42,50 @@ public class Tile implements Runnable {
   private Detail mDetail;
 
   // variable (computed)
-  private volatile State mState = State.IDLE;
-  private Bitmap mBitmap;
-
-  // lazy
-  private String mCacheKey;
+  private final AtomicReference<State> mState = new AtomicReference<>(State.IDLE);
+  // bumped every time the tile is recycled, so a worker can tell if the tile it started on is still the one it's publishing to
+  private volatile int mGeneration;
+  private int mWorkingGeneration;
+  // our reference to what we're drawing, released (or handed to the memory cache) when we're done with it
+  private volatile TileBitmap mBitmap;
+  // set while the tile is in the prefetch ring rather than on screen
+  private volatile boolean mIsPrefetched;
+  private float mPriority;
+  // encoded bytes read on the io stage, waiting for the decode stage.  a patch reuses it for source tiles it didn't read ahead
+  private EncodedBuffer[] mPieces = NO_PIECES;
+  // what a patch is drawn from - cached patches at a lower sample wherever we have them, source tiles everywhere else
+  private final List<PatchPart> mParts = new ArrayList<>();
+  private int mReadAheadBytes;
+  private boolean mIsFromDiskCache;
+  private boolean mWillCoverReusedBitmap;
 
   // final default
   private final Rect mDestinationRect = new Rect();
+  private final Rect mPartRect = new Rect();
   private final BitmapFactory.Options mDrawingOptions = new TileOptions(false);
   private final BitmapFactory.Options mMeasureOptions = new TileOptions(true);
+  // bitmaps in the disk cache are already the final size, so never subsample them
+  private final BitmapFactory.Options mCachedOptions = new TileOptions(false);
+  private final Runnable mDecodeTask = this::runDecode;
 
   // final
   private final int mSize;
   private final DrawingView mDrawingView;
   private final Listener mListener;
   private final StreamProvider mStreamProvider;
-  private final TileView.BitmapCache mMemoryCache;
+  private final TileView.TileCache mMemoryCache;
   private final TileView.BitmapCache mDiskCache;
   private final TileView.BitmapPool mBitmapPool;
   private final TileView.DiskCachePolicy mDiskCachePolicy;
-  private final ThreadPoolExecutor mThreadPoolExecutor;
+  private final TileRenderExecutor mExecutor;
 
-  public Tile(int size, Bitmap.Config bitmapConfig, DrawingView drawingView, Listener listener, ThreadPoolExecutor threadPoolExecutor, StreamProvider streamProvider, TileView.BitmapCache memoryCache, TileView.BitmapCache diskCache, TileView.BitmapPool bitmapPool, TileView.DiskCachePolicy diskCachePolicy) {
+  public Tile(int size, Bitmap.Config bitmapConfig, DrawingView drawingView, Listener listener, TileRenderExecutor executor, StreamProvider streamProvider, TileView.TileCache memoryCache, TileView.BitmapCache diskCache, TileView.BitmapPool bitmapPool, TileView.DiskCachePolicy diskCachePolicy) {
     mSize = size;
     mDrawingOptions.inPreferredConfig = bitmapConfig;
+    mCachedOptions.inPreferredConfig = bitmapConfig;
     mDrawingView = drawingView;
     mListener = listener;
-    mThreadPoolExecutor = threadPoolExecutor;
+    mExecutor = executor;
     mStreamProvider = streamProvider;
     mMemoryCache = memoryCache;
     mDiskCache = diskCache;
@@ -66,7 +96,19 @@ public class Tile implements Runnable {
   }
 
   public State getState() {
-    return mState;
+    return mState.get();
+  }
+
+  private boolean isCancelled() {
+    return mState.get() == State.CANCELLED;
+  }
+
+  /**
+   * Prefetched tiles that are destroyed before they're ever shown give their bitmaps to the memory cache as the first to
+   * be evicted, behind everything that was on screen.
+   */
+  public void setPrefetched(boolean prefetched) {
+    mIsPrefetched = prefetched;
   }
 
   public int getRow() {
@@ -98,12 +140,44 @@ public class Tile implements Runnable {
     mDetail = detail;
   }
 
+  public float getPriority() {
+    return mPriority;
+  }
+
+  // lower is sooner - squared distance, in tiles, from the center of this tile (or patch) to the focal point, plus bias
+  void updatePriority(float focalColumn, float focalRow, float bias) {
+    float halfSpan = mImageSample * 0.5f;
+    float deltaColumn = mColumn + halfSpan - focalColumn;
+    float deltaRow = mRow + halfSpan - focalRow;
+    mPriority = deltaColumn * deltaColumn + deltaRow * deltaRow + bias;
+  }
+
+  // a shared executor ranks tiles itself
+  void setPriority(float priority) {
+    mPriority = priority;
+  }
+
+  boolean isOwnedBy(Listener listener) {
+    return mListener == listener;
+  }
+
+  // called by the executor before handing the tile to a worker - if this fails, the tile is already queued or working
+  boolean markQueued() {
+    return mState.compareAndSet(State.IDLE, State.QUEUED);
+  }
+
+  // called by the executor when it pulls a still-wanted tile back out of its queue, so it can be queued again
+  void markDequeued() {
+    mState.compareAndSet(State.QUEUED, State.IDLE);
+  }
+
   public Rect getDrawingRect() {
     return mDestinationRect;
   }
 
   public Bitmap getBitmap() {
-    return mBitmap;
+    TileBitmap bitmap = mBitmap;
+    return bitmap == null ? null : bitmap.getBitmap();
   }
 
   public BitmapFactory.Options getDrawingOptions() {
@@ -114,6 +188,25 @@ public class Tile implements Runnable {
     return mMeasureOptions;
   }
 
+  // true if whatever the pool hands us next will have every pixel overwritten, so the pool needn't clear it first
+  public boolean willCoverReusedBitmap() {
+    return mWillCoverReusedBitmap;
+  }
+
+  private Bitmap borrowBitmap(boolean willCover) {
+    mWillCoverReusedBitmap = willCover;
+    return mBitmapPool.getBitmapForReuse(this);
+  }
+
+  // a single piece decoded straight into the bitmap (the decoder reconfigures it to the piece's bounds) that can't be
+  // translucent.  patches draw onto a canvas, so anything left behind would show through
+  private boolean isOpaqueSinglePiece() {
+    if (mImageSample != UNSCALED_SAMPLE_SIZE || mIsFromDiskCache || mPieces.length != 1) {
+      return false;
+    }
+    return mDrawingOptions.inPreferredConfig == Bitmap.Config.RGB_565 || mPieces[0].isJpeg();
+  }
+
   private void updateDestinationRect() {
     int cellSize = mSize * mDetail.getSample();
     int patchSize = cellSize * mImageSample;
@@ -123,140 +216,429 @@ public class Tile implements Runnable {
     mDestinationRect.bottom = mDestinationRect.top + patchSize;
   }
 
-  private String getCacheKey() {
-    if (mCacheKey == null) {
-      mCacheKey = String.valueOf(mColumn) + String.valueOf(mRow) + String.valueOf(mImageSample) + String.valueOf(mDetail.getZoom());
-    }
-    return mCacheKey;
+  // computed rather than cached - tiles are pooled and reused, so a cached key could render the wrong tile from cache
+  public long getKey() {
+    return TileKey.pack(mDetail.getNamespace(), mDetail.getZoom(), mImageSample, mColumn, mRow);
   }
 
-  // if destroyed by the time this is called, make sure bitmap stays null
-  // otherwise, set bitmap, update state, send to memory cache and notify drawing view
-  private void setDecodedBitmap(Bitmap bitmap) {
-    if (mState != State.DECODING) {
-      mBitmap = null;
+  // the only way a worker lets go of a tile.  if we're still wanted, the bitmap (null if there was nothing to decode) is
+  // published and we're DECODED.  if we were cancelled along the way, the main thread has already let go, so it's on us to recycle
+  private void publish(TileBitmap bitmap) {
+    // stale - the tile has been recycled (and maybe reused) since this worker started on it, so nothing here is ours
+    if (mWorkingGeneration != mGeneration) {
+      if (bitmap != null) {
+        bitmap.release();
+      }
       return;
     }
     mBitmap = bitmap;
-    mState = State.DECODED;
-    mDrawingView.setDirty();
+    if (mState.compareAndSet(State.DECODING, State.DECODED)) {
+      mDrawingView.setDirty();
+      return;
+    }
+    mBitmap = null;
+    // never shown - if nothing else holds it, it can be decoded into again
+    if (bitmap != null) {
+      bitmap.release();
+    }
+    recycle();
   }
 
-  protected synchronized void decode() throws Exception {
-    if (mState != State.IDLE) {
-      return;
+  private InputStream openStream(int column, int row, Context context) throws Exception {
+    InputStream stream = mStreamProvider.getStream(column, row, context, mDetail.getData());
+    if (stream == null) {
+      return null;
     }
-    if (Looper.myLooper() == Looper.getMainLooper()) {
-      return;
+    return new CancellableInputStream(stream, this);
+  }
+
+  private void preparePieces(int count) {
+    if (mPieces.length != count) {
+      mPieces = new EncodedBuffer[count];
+    }
+    for (int i = 0; i < count; i++) {
+      if (mPieces[i] == null) {
+        mPieces[i] = new EncodedBuffer();
+      }
+    }
+  }
+
+  // patches can hold dozens of pieces - don't keep them around in the pool
+  private void releasePieces() {
+    if (mPieces.length > 1) {
+      mPieces = NO_PIECES;
+    } else if (mPieces.length == 1) {
+      mPieces[0].clear();
+    }
+    for (PatchPart part : mParts) {
+      if (part.mCached != null) {
+        part.mCached.release();
+      }
+      if (part.mPixels != null) {
+        mBitmapPool.put(part.mPixels);
+      }
+      if (part.mEncoded != null) {
+        mExecutor.recycleBuffer(part.mEncoded);
+      }
     }
-    mState = State.DECODING;
+    mParts.clear();
+    mReadAheadBytes = 0;
+  }
+
+  private Bitmap decodePiece(int index, BitmapFactory.Options options) {
+    return decodePiece(mPieces[index], options);
+  }
+
+  private static Bitmap decodePiece(EncodedBuffer piece, BitmapFactory.Options options) {
+    if (piece.isEmpty()) {
+      return null;
+    }
+    return BitmapFactory.decodeByteArray(piece.getBytes(), 0, piece.getLength(), options);
+  }
+
+  private static void lowerThreadPriority() {
     // the second line is critical on some devices - we're doing so much work off thread that anything higher priority causes jank
     Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
     Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+  }
+
+  // io stage - if it's in memory we're done, otherwise read the encoded bytes from the disk cache or stream provider
+  // and hand them off to the decode stage.  returns true if the tile was published or handed off
+  private boolean fetch() throws Exception {
     // putting a thread.sleep of even 100ms here shows that maybe we're doing work off screen that we should not be doing
     updateDestinationRect();
-    String key = getCacheKey();
-    Bitmap cached = mMemoryCache.get(key);
+    long key = getKey();
+    // the cache keeps its copy - we share it, with our own reference
+    TileBitmap cached = mMemoryCache.get(key);
     if (cached != null) {
-      mMemoryCache.remove(key);
-      setDecodedBitmap(cached);
-      return;
+      publish(cached);
+      return true;
     }
-    Context context = mDrawingView.getContext();
-    // garden path - image sample size is 1, we have a detail level defined for this zoom
-    if (mImageSample == UNSCALED_SAMPLE_SIZE) {
-      // if we cache everything to disk (usually because we're fetching from remote sources)
-      // check the disk cache now and return out if we can
-      if (mDiskCachePolicy == TileView.DiskCachePolicy.CACHE_ALL) {
-        cached = mDiskCache.get(key);
-        if (cached != null) {
-          setDecodedBitmap(cached);
-          return;
+    // patches always go to the disk cache, even if reading files locally.  full tiles only if we cache everything
+    // (usually because we're fetching from remote sources).  either way, check it first
+    boolean isPatch = mImageSample != UNSCALED_SAMPLE_SIZE;
+    if (mDiskCache != null && (isPatch || mDiskCachePolicy == TileView.DiskCachePolicy.CACHE_ALL)) {
+      // a patch stored as raw pixels is just a copy, so it's done right here rather than handed off to be decoded
+      if (isPatch && mDiskCache.hasPixels(key)) {
+        Bitmap bitmap = readCachedPixels(key);
+        if (bitmap != null) {
+          publish(new TileBitmap(bitmap, mBitmapPool));
+          return true;
         }
       }
-      // no strong disk cache policy, go ahead and decode
-      InputStream stream = mStreamProvider.getStream(mColumn, mRow, context, mDetail.getData());
+      InputStream stream = mDiskCache.openStream(key);
       if (stream != null) {
-        // if we made it this far, the exact bitmap wasn't in memory, but let's grab the least recently used bitmap from the cache and draw over it
-        mDrawingOptions.inBitmap = mBitmapPool.getBitmapForReuse(this);
-        Bitmap bitmap = BitmapFactory.decodeStream(stream, null, mDrawingOptions);
-        stream.close();
-        setDecodedBitmap(bitmap);
-        if (mDiskCachePolicy == TileView.DiskCachePolicy.CACHE_ALL) {
-          mDiskCache.put(key, bitmap);
-        }
+        preparePieces(1);
+        mPieces[0].readFrom(new CancellableInputStream(stream, this));
+        mIsFromDiskCache = true;
+        return handOff();
       }
-      // we don't have a defined zoom level, so we need to use image sub-sampling and disk cache even if reading files locally
+    }
+    mIsFromDiskCache = false;
+    Context context = mDrawingView.getContext();
+    // garden path - image sample size is 1, we have a detail level defined for this zoom
+    if (!isPatch) {
+      preparePieces(1);
+      mPieces[0].readFrom(openStream(mColumn, mRow, context));
+      // we don't have a defined zoom level, so we need to patch together every tile this one covers from the defined level
     } else {
-      cached = mDiskCache.get(key);
-      if (cached != null) {
-        setDecodedBitmap(cached);
-        return;
+      collectParts(mColumn, mRow, mImageSample, context);
+    }
+    return handOff();
+  }
+
+  // a patch is four patches at half its sample, so any of those already in memory or on disk is one cache read instead of
+  // reading (and later decoding) every source tile under it.  whatever isn't cached is split again, down to the source tiles
+  private void collectParts(int column, int row, int sample, Context context) throws Exception {
+    // if we got destroyed while reading, drop out - handOff will see it
+    if (isCancelled()) {
+      return;
+    }
+    // the patch itself has already missed
+    if (sample < mImageSample && collectCachedPart(column, row, sample)) {
+      return;
+    }
+    if (sample == UNSCALED_SAMPLE_SIZE) {
+      PatchPart part = addPart(column, row, sample);
+      part.mIsSource = true;
+      // otherwise it's read when it's drawn
+      if (mReadAheadBytes < MAX_PATCH_READ_AHEAD_BYTES) {
+        readAhead(part, openStream(column, row, context));
       }
-      // if we're patching, we need a base bitmap to draw on
-      Bitmap bitmap = Bitmap.createBitmap(mSize, mSize, mDrawingOptions.inPreferredConfig);
-      Canvas canvas = new Canvas(bitmap);
-      int size = mSize / mImageSample;
-      InputStream stream;
-      for (int i = 0; i < mImageSample; i++) {
-        for (int j = 0; j < mImageSample; j++) {
-          // if we got destroyed while decoding, drop out
-          if (mState != State.DECODING) {
-            return;
-          }
-          stream = mStreamProvider.getStream(mColumn + j, mRow + i, context, mDetail.getData());
-          if (stream != null) {
-            Bitmap piece = BitmapFactory.decodeStream(stream, null, mDrawingOptions);
-            if (piece != null) {
-              canvas.drawBitmap(piece, j * size, i * size, null);
-            }
-            stream.close();
-          }
-        }
+      return;
+    }
+    int half = sample / 2;
+    collectParts(column, row, half, context);
+    collectParts(column + half, row, half, context);
+    collectParts(column, row + half, half, context);
+    collectParts(column + half, row + half, half, context);
+  }
+
+  private boolean collectCachedPart(int column, int row, int sample) throws IOException {
+    long key = TileKey.pack(mDetail.getNamespace(), mDetail.getZoom(), sample, column, row);
+    TileBitmap cached = mMemoryCache.get(key);
+    if (cached != null) {
+      addPart(column, row, sample).mCached = cached;
+      return true;
+    }
+    // full tiles on disk are whatever the source gave us - decoding those at full size is no better than the source
+    if (mDiskCache == null || sample == UNSCALED_SAMPLE_SIZE) {
+      return false;
+    }
+    if (mDiskCache.hasPixels(key)) {
+      Bitmap bitmap = readCachedPixels(key);
+      if (bitmap != null) {
+        addPart(column, row, sample).mPixels = bitmap;
+        return true;
       }
-      setDecodedBitmap(bitmap);
-      // we need to cache patches to disk even if local
-      if (mDiskCachePolicy != TileView.DiskCachePolicy.CACHE_NONE) {
-        mDiskCache.put(key, bitmap);
+    }
+    InputStream stream = mDiskCache.openStream(key);
+    if (stream == null) {
+      return false;
+    }
+    readAhead(addPart(column, row, sample), new CancellableInputStream(stream, this));
+    return true;
+  }
+
+  private void readAhead(PatchPart part, InputStream stream) throws IOException {
+    part.mEncoded = mExecutor.obtainBuffer();
+    part.mEncoded.readFrom(stream);
+    mReadAheadBytes += part.mEncoded.getLength();
+  }
+
+  private PatchPart addPart(int column, int row, int sample) {
+    PatchPart part = new PatchPart(column - mColumn, row - mRow, sample);
+    mParts.add(part);
+    return part;
+  }
+
+  private Bitmap readCachedPixels(long key) {
+    Bitmap bitmap = borrowBitmap(true);
+    if (bitmap == null) {
+      bitmap = Bitmap.createBitmap(mSize, mSize, mDrawingOptions.inPreferredConfig);
+    }
+    if (mDiskCache.getPixels(key, bitmap)) {
+      return bitmap;
+    }
+    mBitmapPool.put(bitmap);
+    return null;
+  }
+
+  private boolean handOff() {
+    // the last read may have been cut off
+    if (isCancelled()) {
+      return false;
+    }
+    mExecutor.decode(mDecodeTask);
+    return true;
+  }
+
+  // decode stage - turn whatever the io stage read into the bitmap we'll draw, or null if there's nothing to show
+  private Bitmap decode() throws Exception {
+    if (isCancelled()) {
+      return null;
+    }
+    lowerThreadPriority();
+    if (mIsFromDiskCache) {
+      return decodePiece(0, mCachedOptions);
+    }
+    if (mImageSample == UNSCALED_SAMPLE_SIZE) {
+      return decodeTile();
+    }
+    return decodePatch();
+  }
+
+  private Bitmap decodeTile() {
+    if (mPieces[0].isEmpty()) {
+      return null;
+    }
+    // if we made it this far, the exact bitmap wasn't in memory, but let's grab the least recently used bitmap from the cache and draw over it
+    mDrawingOptions.inBitmap = borrowBitmap(isOpaqueSinglePiece());
+    Bitmap bitmap = decodePiece(0, mDrawingOptions);
+    // if we were destroyed mid-decode, whatever we got (if anything) is incomplete, so don't cache it.  publish will find us
+    // cancelled and send it back to the pool
+    if (isCancelled()) {
+      return bitmap;
+    }
+    // write before publishing - once published, the main thread can destroy the tile and send the bitmap off for reuse.
+    // the bytes we just decoded are stored as they are if the cache will take them, so there's nothing to encode
+    if (bitmap != null && mDiskCache != null && mDiskCachePolicy == TileView.DiskCachePolicy.CACHE_ALL) {
+      EncodedBuffer piece = mPieces[0];
+      if (!mDiskCache.putEncoded(getKey(), piece.getBytes(), 0, piece.getLength())) {
+        mDiskCache.put(getKey(), bitmap);
       }
     }
+    return bitmap;
   }
 
-  // we use this signature to call from the Executor, so it can remove tiles via iterator
-  public synchronized void destroy(boolean removeFromQueue) {
-    if (mState == State.IDLE) {
-      return;
+  private Bitmap decodePatch() throws Exception {
+    // if we're patching, we need a base bitmap to draw on
+    Bitmap bitmap = Bitmap.createBitmap(mSize, mSize, mDrawingOptions.inPreferredConfig);
+    Canvas canvas = new Canvas(bitmap);
+    for (PatchPart part : mParts) {
+      // if we got destroyed while decoding, drop out - publish sends the base back to the pool
+      if (isCancelled()) {
+        return bitmap;
+      }
+      int left = part.mColumn * mSize / mImageSample;
+      int top = part.mRow * mSize / mImageSample;
+      if (part.mIsSource) {
+        EncodedBuffer encoded = part.mEncoded;
+        // past the read ahead - read it now, into the buffer every such tile shares
+        if (encoded == null) {
+          preparePieces(1);
+          encoded = mPieces[0];
+          encoded.readFrom(openStream(mColumn + part.mColumn, mRow + part.mRow, mDrawingView.getContext()));
+        }
+        // already decoded at the patch's sample, so it's drawn as is
+        Bitmap piece = decodePiece(encoded, mDrawingOptions);
+        if (piece != null) {
+          canvas.drawBitmap(piece, left, top, null);
+        }
+        continue;
+      }
+      Bitmap piece = part.mCached != null ? part.mCached.getBitmap() : part.mPixels;
+      if (piece == null && part.mEncoded != null) {
+        piece = decodePiece(part.mEncoded, mCachedOptions);
+      }
+      if (piece != null) {
+        int extent = part.mSample * mSize / mImageSample;
+        mPartRect.set(left, top, left + extent, top + extent);
+        canvas.drawBitmap(piece, null, mPartRect, SCALING_PAINT);
+      }
     }
-    if (removeFromQueue) {
-      mThreadPoolExecutor.remove(this);
+    // the last piece may have been cut off
+    if (isCancelled()) {
+      return bitmap;
     }
-    if (mState == State.DECODED) {
-      mMemoryCache.put(getCacheKey(), mBitmap);
+    // we need to cache patches to disk even if local - as raw pixels, if the cache will take them
+    if (mDiskCache != null && mDiskCachePolicy != TileView.DiskCachePolicy.CACHE_NONE && !mDiskCache.putPixels(getKey(), bitmap)) {
+      mDiskCache.put(getKey(), bitmap);
     }
+    return bitmap;
+  }
+
+  // back to a clean, idle tile, and back to the pool.  only ever called by whichever thread owns the tile at the time
+  @SuppressWarnings("deprecation")
+  private void recycle() {
     mBitmap = null;
-    mDrawingOptions.inBitmap = null;
-    // since tiles are pooled and reused, make sure to reset the cache key or you'll render the wrong tile from cache
-    mCacheKey = null;
-    mState = State.IDLE;
+    mIsPrefetched = false;
+    releasePieces();
+    mDrawingOptions.mCancel = false;
+    mCachedOptions.mCancel = false;
+    mGeneration++;
+    mState.set(State.IDLE);
     mListener.onTileDestroyed(this);
+  }
 
+  // never blocks - if a worker has the tile, it's flagged as cancelled and the worker recycles it at its next checkpoint
+  // we use this signature to call from the Executor, so it can remove tiles via iterator
+  @SuppressWarnings("deprecation")
+  public void destroy(boolean removeFromQueue) {
+    while (true) {
+      State state = mState.get();
+      switch (state) {
+        case DECODED:
+          // hand our reference to the cache.  if we were drawn from it, it already has this bitmap and just drops ours
+          if (mBitmap != null && mIsPrefetched) {
+            mMemoryCache.putEldest(getKey(), mBitmap);
+          } else if (mBitmap != null) {
+            mMemoryCache.put(getKey(), mBitmap);
+          }
+          recycle();
+          return;
+        case QUEUED:
+          if (mState.compareAndSet(State.QUEUED, State.CANCELLED)) {
+            // if it's no longer in the queue, a worker already has it and will see the cancellation
+            if (!removeFromQueue || mExecutor.removeQueued(this)) {
+              recycle();
+            }
+            return;
+          }
+          break;
+        case DECODING:
+          if (mState.compareAndSet(State.DECODING, State.CANCELLED)) {
+            // the stream will throw on its next read, and the decoder is asked to bail
+            mDrawingOptions.requestCancelDecode();
+            mCachedOptions.requestCancelDecode();
+            // if it was read but is still waiting in the hand-off, no worker will ever see it, so it's ours
+            if (mExecutor.removeDecode(mDecodeTask)) {
+              recycle();
+            }
+            return;
+          }
+          break;
+        default:
+          // IDLE has nothing to let go of, and CANCELLED is already on its way back to the pool
+          return;
+      }
+      // lost a race with a worker moving the tile along - look again
+    }
   }
 
   public void destroy() {
     destroy(true);
   }
 
+  // io stage entry point, run by the executor
   public void run() {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      return;
+    }
+    // we may have been cancelled between being queued and being picked up
+    if (!mState.compareAndSet(State.QUEUED, State.DECODING)) {
+      if (isCancelled()) {
+        recycle();
+      }
+      return;
+    }
+    mWorkingGeneration = mGeneration;
+    lowerThreadPriority();
+    boolean isHandled = false;
     try {
-      decode();
+      isHandled = fetch();
     } catch (Exception e) {
-      mListener.onTileDecodeError(this, e);
+      // a cancelled read can fail any number of ways once its stream is cut off, none of which are worth reporting
+      if (!isCancelled()) {
+        mListener.onTileDecodeError(this, e);
+      }
+    }
+    if (!isHandled) {
+      releasePieces();
+      publish(null);
+    }
+  }
+
+  // decode stage entry point, handed off from the io stage
+  private void runDecode() {
+    Bitmap bitmap = null;
+    try {
+      bitmap = decode();
+    } catch (Exception e) {
+      if (!isCancelled()) {
+        mListener.onTileDecodeError(this, e);
+      }
+    } finally {
+      releasePieces();
+    }
+    returnBorrowedBitmap(bitmap);
+    publish(bitmap == null ? null : new TileBitmap(bitmap, mBitmapPool));
+  }
+
+  // whatever we borrowed from the pool either became our bitmap (and belongs to its TileBitmap from here on), or the
+  // decoder didn't use it (or never got to), so it goes straight back
+  private void returnBorrowedBitmap(Bitmap decoded) {
+    Bitmap borrowed = mDrawingOptions.inBitmap;
+    mDrawingOptions.inBitmap = null;
+    if (borrowed != null && borrowed != decoded) {
+      mBitmapPool.put(borrowed);
     }
   }
 
   public void draw(Canvas canvas) {
-    if (mState == State.DECODED && mBitmap != null) {
-      canvas.drawBitmap(mBitmap, null, mDestinationRect, null);
+    TileBitmap bitmap = mBitmap;
+    if (mState.get() == State.DECODED && bitmap != null) {
+      canvas.drawBitmap(bitmap.getBitmap(), null, mDestinationRect, null);
     }
   }
 
@@ -266,20 +648,15 @@ public class Tile implements Runnable {
       return true;
     }
     if (obj instanceof Tile) {
-      Tile compare = (Tile) obj;
-      return compare.mColumn == mColumn && compare.mRow == mRow && compare.mImageSample == mImageSample && compare.mDetail.getZoom() == mDetail.getZoom();
+      return ((Tile) obj).getKey() == getKey();
     }
     return false;
   }
 
   @Override
   public int hashCode() {
-    int hash = 17;
-    hash = hash * 31 + mColumn;
-    hash = hash * 31 + mRow;
-    hash = hash * 31 + mImageSample;
-    hash = hash * 31 + mDetail.getZoom();
-    return hash;
+    long key = getKey();
+    return (int) (key ^ (key >>> 32));
   }
 
   public interface DrawingView {
@@ -292,6 +669,63 @@ public class Tile implements Runnable {
     void onTileDecodeError(Tile tile, Exception e);
   }
 
+  // one square of a patch, in source tiles from the patch's origin, and wherever it's coming from: a cached patch in memory
+  // (referenced until drawn) or on disk (as pixels or encoded), or a source tile
+  private static class PatchPart {
+
+    final int mColumn;
+    final int mRow;
+    final int mSample;
+    // borrowed from the executor when read on the io stage
+    EncodedBuffer mEncoded;
+    TileBitmap mCached;
+    Bitmap mPixels;
+    boolean mIsSource;
+
+    PatchPart(int column, int row, int sample) {
+      mColumn = column;
+      mRow = row;
+      mSample = sample;
+    }
+
+  }
+
+  // rather than closing a stream out from under the io stage on another thread, have it fail its next read
+  private static class CancellableInputStream extends FilterInputStream {
+
+    private final Tile mTile;
+
+    CancellableInputStream(InputStream in, Tile tile) {
+      super(in);
+      mTile = tile;
+    }
+
+    private void throwIfCancelled() throws IOException {
+      if (mTile.isCancelled()) {
+        throw new IOException("Tile decode cancelled");
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      throwIfCancelled();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      throwIfCancelled();
+      return super.read(buffer, offset, length);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      throwIfCancelled();
+      return super.skip(count);
+    }
+
+  }
+
   private static class TileOptions extends BitmapFactory.Options {
 
     // using inTempStorage with local files can create artifacts
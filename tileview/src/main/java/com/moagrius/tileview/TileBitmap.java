@@ -0,0 +1,75 @@
+package com.moagrius.tileview;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A decoded tile bitmap, shared between the tiles drawing it and the memory cache.  Each holder has a reference, and the
+ * bitmap only goes back to the pool (to be decoded into again) once the last one is released - so nothing can be written
+ * into a bitmap while anything might still draw it.
+ *
+ * Starts with a single reference, owned by whoever created it.
+ */
+public final class TileBitmap {
+
+  private final Bitmap mBitmap;
+  private final TileView.BitmapPool mBitmapPool;
+  private final int mSize;
+  private final AtomicInteger mReferenceCount = new AtomicInteger(1);
+
+  public TileBitmap(Bitmap bitmap, TileView.BitmapPool bitmapPool) {
+    // the allocation, not just what the tile uses of it - a pooled bitmap can be bigger than the tile decoded into it
+    this(bitmap, bitmap.getAllocationByteCount() / 1024, bitmapPool);
+  }
+
+  // caches only need the size, so their policies can be exercised without decoding anything
+  TileBitmap(Bitmap bitmap, int size, TileView.BitmapPool bitmapPool) {
+    mBitmap = bitmap;
+    mSize = size;
+    mBitmapPool = bitmapPool;
+  }
+
+  public Bitmap getBitmap() {
+    return mBitmap;
+  }
+
+  /**
+   * @return The size of the bitmap's allocation, in kilobytes - nothing can reconfigure it while it's referenced.
+   */
+  public int getSize() {
+    return mSize;
+  }
+
+  // a bitmap that's been recycled out from under us (it has no config) can't be drawn or reused, so isn't worth caching
+  boolean isCacheable() {
+    return mBitmap == null || mBitmap.getConfig() != null;
+  }
+
+  /**
+   * Adds a reference, unless the last one has already been released.
+   *
+   * @return True if the caller now holds a reference, false if the bitmap has already gone back to the pool.
+   */
+  public boolean acquire() {
+    while (true) {
+      int count = mReferenceCount.get();
+      if (count == 0) {
+        return false;
+      }
+      if (mReferenceCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  public void release() {
+    int count = mReferenceCount.decrementAndGet();
+    if (count == 0) {
+      mBitmapPool.put(mBitmap);
+    } else if (count < 0) {
+      throw new IllegalStateException("TileBitmap released more times than it was acquired");
+    }
+  }
+
+}
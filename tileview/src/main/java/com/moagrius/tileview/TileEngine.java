@@ -0,0 +1,341 @@
+package com.moagrius.tileview;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A memory cache, bitmap pool and render executor shared by any number of TileViews (see
+ * {@link TileView.Builder#setTileEngine(TileEngine)}), so several views on screen at once share one heap budget and one
+ * set of threads, rather than each taking its own.
+ *
+ * Each view is held to an equal share of the memory cache - when it goes over, its own least recently used tiles are
+ * dropped, so one busy view can't flush everything the others are showing.  A tile counted by more than one view (views
+ * showing the same image share tiles) stays cached until the last of them drops it.  Each view's tiles are keyed under a namespace
+ * for its detail levels' data (along with its tile size and config), so views showing the same image share tiles, and
+ * views showing different ones can't collide.  Namespaces are held by the views using them, and freed for reuse once
+ * the last of those is destroyed.  The executor takes tiles from each view in turn.
+ */
+public class TileEngine {
+
+  private final TileView.TileCache mMemoryCache;
+  private final TileView.BitmapPool mBitmapPool;
+  private final TileRenderExecutor mExecutor;
+  private final int mMemoryCacheSize;
+
+  // namespaces in use, and how many views use each.  a namespace is freed (and its data let go of) when the last view
+  // using it is unregistered, by which point nothing cached under it is counted by anyone, so it's all been dropped
+  private final Map<List<Object>, Integer> mNamespaces = new HashMap<>();
+  private final int[] mNamespaceReferences = new int[TileKey.MAX_NAMESPACE + 1];
+  private final ArrayDeque<Integer> mFreedNamespaces = new ArrayDeque<>();
+  // how many views count each key against their quota - only a key nobody counts is taken out of the shared cache
+  private final LongLruMap<Integer> mOwnerCounts = new LongLruMap<>();
+  private int mViewCount;
+  private volatile int mViewQuota;
+
+  private TileEngine(Builder builder) {
+    mMemoryCacheSize = builder.mMemoryCacheSize;
+    mViewQuota = builder.mMemoryCacheSize;
+    mBitmapPool = new BucketedBitmapPool(builder.mBitmapPoolSize);
+    mMemoryCache = TileView.createMemoryCache(builder.mMemoryCachePolicy, builder.mMemoryCacheSize);
+    mExecutor = new TileRenderExecutor(builder.mIoThreadCount, builder.mDecodeThreadCount, builder.mDecodeThreadCount * 2, builder.mRenderOrder == TileView.RenderOrder.DISTANCE_FROM_CENTER, true);
+  }
+
+  public TileRenderExecutor getExecutor() {
+    return mExecutor;
+  }
+
+  TileView.BitmapPool getBitmapPool() {
+    return mBitmapPool;
+  }
+
+  /**
+   * @return The size, in kilobytes, of the memory cache each view is currently held to.
+   */
+  public int getViewQuota() {
+    return mViewQuota;
+  }
+
+  private synchronized int acquireNamespace(List<Object> key) {
+    Integer namespace = mNamespaces.get(key);
+    if (namespace == null) {
+      namespace = mFreedNamespaces.poll();
+    }
+    if (namespace == null) {
+      // 0 is for views that don't share
+      if (mNamespaces.size() >= TileKey.MAX_NAMESPACE) {
+        throw new IllegalStateException("TileEngine supports at most " + TileKey.MAX_NAMESPACE + " distinct detail levels in use at once");
+      }
+      namespace = mNamespaces.size() + 1;
+    }
+    mNamespaces.put(key, namespace);
+    mNamespaceReferences[namespace]++;
+    return namespace;
+  }
+
+  private synchronized void releaseNamespace(List<Object> key) {
+    Integer namespace = mNamespaces.get(key);
+    if (namespace != null && --mNamespaceReferences[namespace] == 0) {
+      mNamespaces.remove(key);
+      mFreedNamespaces.add(namespace);
+    }
+  }
+
+  // the view's own cache, which shares entries (and the budget) with everything else in the engine
+  synchronized ViewCache register() {
+    mViewCount++;
+    mViewQuota = mMemoryCacheSize / mViewCount;
+    return new ViewCache();
+  }
+
+  // whatever the view counted is let go of - if no other view counts it, it's dropped from the cache
+  void unregister(ViewCache viewCache) {
+    synchronized (this) {
+      mViewCount = Math.max(0, mViewCount - 1);
+      mViewQuota = mMemoryCacheSize / Math.max(1, mViewCount);
+    }
+    viewCache.release();
+  }
+
+  /**
+   * Evicts from the memory cache and bitmap pool until no more than these fractions of their budgets are used.
+   */
+  public void trim(float memoryCacheFraction, float bitmapPoolFraction) {
+    mMemoryCache.trim(memoryCacheFraction);
+    mBitmapPool.trim(bitmapPoolFraction);
+  }
+
+  /**
+   * Stops the executor and empties the memory cache and bitmap pool.  Only call once no view is using the engine.
+   */
+  public void shutdown() {
+    mExecutor.shutdownNow();
+    trim(0, 0);
+  }
+
+  private void acquireKey(long key) {
+    synchronized (mOwnerCounts) {
+      Integer count = mOwnerCounts.get(key);
+      mOwnerCounts.put(key, count == null ? 1 : count + 1);
+    }
+  }
+
+  // the shared cache is called outside our lock.  if another view puts the same key in between, the worst that happens is
+  // that its copy is dropped (a miss later) or it counts an entry that's already gone (an early eviction)
+  private void releaseKey(long key) {
+    synchronized (mOwnerCounts) {
+      Integer count = mOwnerCounts.get(key);
+      if (count == null) {
+        return;
+      }
+      if (count > 1) {
+        mOwnerCounts.put(key, count - 1);
+        return;
+      }
+      mOwnerCounts.remove(key);
+    }
+    mMemoryCache.remove(key);
+  }
+
+  private void removeIfUnowned(long key) {
+    synchronized (mOwnerCounts) {
+      if (mOwnerCounts.containsKey(key)) {
+        return;
+      }
+    }
+    mMemoryCache.remove(key);
+  }
+
+  private static int sizeOf(TileBitmap bitmap) {
+    return bitmap.getSize();
+  }
+
+  // tracks what one view has put in (or drawn from) the shared cache, most recent last, and lets go of the eldest when it
+  // goes over quota.
+  // entries the shared cache has already evicted are still counted until they're dropped here, so this can only err on
+  // the side of evicting early
+  class ViewCache implements TileView.TileCache {
+
+    private final LongLruMap<Integer> mSizes = new LongLruMap<>();
+    private final Set<List<Object>> mNamespaceKeys = new HashSet<>();
+    private int mSize;
+    private boolean mIsReleased;
+
+    /**
+     * @return The namespace for tiles of this data, size and config, held until this view is unregistered.
+     */
+    int getNamespace(Object data, int tileSize, Bitmap.Config config) {
+      List<Object> key = Arrays.asList(data, tileSize, config);
+      synchronized (this) {
+        if (mIsReleased) {
+          throw new IllegalStateException("View has been unregistered from its TileEngine");
+        }
+        if (mNamespaceKeys.add(key)) {
+          return acquireNamespace(key);
+        }
+      }
+      synchronized (TileEngine.this) {
+        return mNamespaces.get(key);
+      }
+    }
+
+    // a tile destroyed after we're gone may still put its bitmap here - it's dropped rather than left counted by nobody
+    private void release() {
+      List<List<Object>> namespaceKeys;
+      synchronized (this) {
+        mIsReleased = true;
+        namespaceKeys = new ArrayList<>(mNamespaceKeys);
+        mNamespaceKeys.clear();
+      }
+      trimToSize(-1);
+      for (List<Object> key : namespaceKeys) {
+        releaseNamespace(key);
+      }
+    }
+
+    // a hit counts against us too - we're showing it, so it shouldn't be dropped out from under us by whoever put it there
+    @Override
+    public TileBitmap get(long key) {
+      TileBitmap bitmap = mMemoryCache.get(key);
+      if (bitmap != null) {
+        track(key, sizeOf(bitmap));
+      }
+      return bitmap;
+    }
+
+    @Override
+    public void put(long key, TileBitmap bitmap) {
+      put(key, bitmap, false);
+    }
+
+    // the eldest here as well as in the shared cache, so it's the first this view lets go of
+    @Override
+    public void putEldest(long key, TileBitmap bitmap) {
+      put(key, bitmap, true);
+    }
+
+    private void put(long key, TileBitmap bitmap, boolean isEldest) {
+      if (bitmap == null) {
+        return;
+      }
+      int size = sizeOf(bitmap);
+      if (isEldest) {
+        mMemoryCache.putEldest(key, bitmap);
+      } else {
+        mMemoryCache.put(key, bitmap);
+      }
+      if (!track(key, size, isEldest)) {
+        removeIfUnowned(key);
+        return;
+      }
+      trimToSize(mViewQuota);
+    }
+
+    private boolean track(long key, int size) {
+      return track(key, size, false);
+    }
+
+    private boolean track(long key, int size, boolean isEldest) {
+      synchronized (this) {
+        if (mIsReleased) {
+          return false;
+        }
+        Integer previous = isEldest ? mSizes.putEldest(key, size) : mSizes.put(key, size);
+        mSize += previous == null ? size : size - previous;
+        if (previous == null) {
+          acquireKey(key);
+        }
+        return true;
+      }
+    }
+
+    @Override
+    public void remove(long key) {
+      synchronized (this) {
+        Integer size = mSizes.remove(key);
+        if (size == null) {
+          return;
+        }
+        mSize -= size;
+      }
+      releaseKey(key);
+    }
+
+    @Override
+    public void trim(float fraction) {
+      trimToSize((int) (mViewQuota * fraction));
+    }
+
+    // one at a time, so the shared cache is never called while we hold our own lock
+    private void trimToSize(int maxSize) {
+      while (true) {
+        long key;
+        synchronized (this) {
+          if (mSize <= maxSize || mSizes.isEmpty()) {
+            return;
+          }
+          key = mSizes.eldestKey();
+          mSize -= mSizes.remove(key);
+        }
+        releaseKey(key);
+      }
+    }
+
+  }
+
+  public static class Builder {
+
+    private int mMemoryCacheSize = (int) ((Runtime.getRuntime().maxMemory() / 1024) / 4);
+    private int mBitmapPoolSize = (int) ((Runtime.getRuntime().maxMemory() / 1024) / 16);
+    private TileView.MemoryCachePolicy mMemoryCachePolicy = TileView.MemoryCachePolicy.CONCURRENT;
+    private TileView.RenderOrder mRenderOrder = TileView.RenderOrder.DISTANCE_FROM_CENTER;
+    private int mIoThreadCount = TileRenderExecutor.getDefaultIoSize();
+    private int mDecodeThreadCount = TileRenderExecutor.getDefaultDecodeSize();
+
+    /**
+     * Budget, in kilobytes, for every view sharing the engine.
+     */
+    public Builder setMemoryCacheSize(int memoryCacheSize) {
+      mMemoryCacheSize = memoryCacheSize;
+      return this;
+    }
+
+    public Builder setMemoryCachePolicy(TileView.MemoryCachePolicy memoryCachePolicy) {
+      mMemoryCachePolicy = memoryCachePolicy;
+      return this;
+    }
+
+    public Builder setBitmapPoolSize(int bitmapPoolSize) {
+      mBitmapPoolSize = bitmapPoolSize;
+      return this;
+    }
+
+    public Builder setRenderOrder(TileView.RenderOrder renderOrder) {
+      mRenderOrder = renderOrder;
+      return this;
+    }
+
+    public Builder setIoThreadCount(int ioThreadCount) {
+      mIoThreadCount = ioThreadCount;
+      return this;
+    }
+
+    public Builder setDecodeThreadCount(int decodeThreadCount) {
+      mDecodeThreadCount = decodeThreadCount;
+      return this;
+    }
+
+    public TileEngine build() {
+      return new TileEngine(this);
+    }
+
+  }
+
+}
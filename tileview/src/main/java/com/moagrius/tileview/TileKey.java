@@ -0,0 +1,92 @@
+package com.moagrius.tileview;
+
+/**
+ * Packs the position of a tile (zoom, image sample, column and row) into a single long, so tiles can be cached and looked
+ * up without building a String for every decode.
+ *
+ * From the low bits up: 20 bits of row, 20 bits of column, 5 bits of log2(sample), 6 bits of zoom, and 12 bits of namespace.
+ * The namespace tells apart tiles of different images sharing a cache (see {@link TileEngine}), and is 0 otherwise.  The
+ * sign bit is left free.
+ */
+public final class TileKey {
+
+  private static final int POSITION_BITS = 20;
+  private static final int SAMPLE_BITS = 5;
+  private static final int ZOOM_BITS = 6;
+  private static final int NAMESPACE_BITS = 12;
+
+  private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+  private static final long SAMPLE_MASK = (1L << SAMPLE_BITS) - 1;
+  private static final long ZOOM_MASK = (1L << ZOOM_BITS) - 1;
+  private static final long NAMESPACE_MASK = (1L << NAMESPACE_BITS) - 1;
+
+  public static final int MAX_NAMESPACE = (int) NAMESPACE_MASK;
+
+  private static final int COLUMN_SHIFT = POSITION_BITS;
+  private static final int SAMPLE_SHIFT = COLUMN_SHIFT + POSITION_BITS;
+  private static final int ZOOM_SHIFT = SAMPLE_SHIFT + SAMPLE_BITS;
+  private static final int NAMESPACE_SHIFT = ZOOM_SHIFT + ZOOM_BITS;
+
+  private TileKey() {
+  }
+
+  /**
+   * @param zoom The zoom level of the detail level the tile is read from.
+   * @param sample The image sample, always a power of 2.
+   * @param column The column of the tile, in tiles of that detail level.
+   * @param row The row of the tile, in tiles of that detail level.
+   * @return The packed key.
+   */
+  public static long pack(int zoom, int sample, int column, int row) {
+    return pack(0, zoom, sample, column, row);
+  }
+
+  /**
+   * @param namespace Identifies the image the tile belongs to, from 0 to {@link #MAX_NAMESPACE}.
+   */
+  public static long pack(int namespace, int zoom, int sample, int column, int row) {
+    if (namespace < 0 || namespace > NAMESPACE_MASK) {
+      throw new IllegalArgumentException("Namespace out of range: " + namespace);
+    }
+    if (zoom < 0 || zoom > ZOOM_MASK || column < 0 || column > POSITION_MASK || row < 0 || row > POSITION_MASK || sample < 1) {
+      throw new IllegalArgumentException("Tile out of range: zoom " + zoom + ", sample " + sample + ", column " + column + ", row " + row);
+    }
+    long sampleShift = Integer.numberOfTrailingZeros(sample);
+    return ((namespace & NAMESPACE_MASK) << NAMESPACE_SHIFT)
+        | ((zoom & ZOOM_MASK) << ZOOM_SHIFT)
+        | ((sampleShift & SAMPLE_MASK) << SAMPLE_SHIFT)
+        | ((column & POSITION_MASK) << COLUMN_SHIFT)
+        | (row & POSITION_MASK);
+  }
+
+  public static int getNamespace(long key) {
+    return (int) ((key >>> NAMESPACE_SHIFT) & NAMESPACE_MASK);
+  }
+
+  public static int getZoom(long key) {
+    return (int) ((key >>> ZOOM_SHIFT) & ZOOM_MASK);
+  }
+
+  public static int getSample(long key) {
+    return 1 << (int) ((key >>> SAMPLE_SHIFT) & SAMPLE_MASK);
+  }
+
+  public static int getColumn(long key) {
+    return (int) ((key >>> COLUMN_SHIFT) & POSITION_MASK);
+  }
+
+  public static int getRow(long key) {
+    return (int) (key & POSITION_MASK);
+  }
+
+  /**
+   * A stable, human readable form of the key, for caches that need String keys (like the disk cache).  Fields are
+   * separated, so (unlike simple concatenation) no two tiles share a name.  The namespace is left out - it's only
+   * assigned for the life of the process, so it can't name anything that outlives it.  Disk caches for different images
+   * are kept apart by directory instead.
+   */
+  public static String toString(long key) {
+    return getZoom(key) + "_" + getSample(key) + "_" + getColumn(key) + "_" + getRow(key);
+  }
+
+}
@@ -1,36 +1,46 @@
 package com.moagrius.tileview;
 
-import java.lang.ref.SoftReference;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.Arrays;
 
+// tiles are returned from whichever thread recycles them, main or worker.  a plain stack under a lock, so returning a
+// tile allocates nothing once the pool has grown to the most tiles that have been let go of at once.  cleared under
+// memory pressure
 public class TilePool {
 
-  private final Queue<SoftReference<Tile>> mQueue = new ArrayDeque<>();
+  private static final int INITIAL_CAPACITY = 64;
+
   private final Factory mFactory;
+  private Tile[] mTiles = new Tile[INITIAL_CAPACITY];
+  private int mCount;
 
   public TilePool(Factory factory) {
     mFactory = factory;
   }
 
   public Tile get() {
-    if (mQueue.peek() != null) {
-      Tile tile = mQueue.poll().get();
-      if (tile != null) {
+    synchronized (this) {
+      if (mCount > 0) {
+        Tile tile = mTiles[--mCount];
+        mTiles[mCount] = null;
         return tile;
       }
     }
     return mFactory.create();
   }
 
-  public void put(Tile tile) {
-    if (tile != null) {
-      mQueue.add(new SoftReference<>(tile));
+  public synchronized void put(Tile tile) {
+    if (tile == null) {
+      return;
+    }
+    if (mCount == mTiles.length) {
+      mTiles = Arrays.copyOf(mTiles, mCount * 2);
     }
+    mTiles[mCount++] = tile;
   }
 
-  public void clear() {
-    mQueue.clear();
+  public synchronized void clear() {
+    Arrays.fill(mTiles, 0, mCount, null);
+    mCount = 0;
   }
 
   public interface Factory {
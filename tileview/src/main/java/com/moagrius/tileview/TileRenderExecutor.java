@@ -1,46 +1,293 @@
 package com.moagrius.tileview;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Renders tiles in two stages.  This executor is the io stage - tiles are queued here, and read their encoded bytes
+ * (from the disk cache or their StreamProvider) on these threads.  The bytes are then handed off to a separately sized
+ * decode stage, through a bounded queue; when decoding falls behind, io threads wait for room rather than reading further ahead.
+ *
+ * A shared executor (see {@link TileEngine}) serves several views.  Each view only re-ranks and cancels its own tiles, and
+ * tiles are ranked by their place in their own view's request, so views take turns rather than one starving the rest.
+ */
 public class TileRenderExecutor extends ThreadPoolExecutor {
 
+  private static final int INITIAL_PRIORITY_QUEUE_CAPACITY = 64;
+  // prefetched tiles always rank behind visible ones, which are at most a screen's diagonal (in tiles) from the focal point
+  private static final float PREFETCH_PRIORITY_BIAS = 1 << 20;
+  // encoded pieces kept for reuse between patches, across every io thread
+  private static final int MAX_SPARE_BUFFER_BYTES = 2 * 1024 * 1024;
+  private static final Comparator<Tile> PRIORITY_COMPARATOR = (a, b) -> Float.compare(a.getPriority(), b.getPriority());
+
+  private final boolean mIsPrioritized;
+  private final boolean mIsShared;
+  private final List<Runnable> mDrainBuffer = new ArrayList<>();
+  private final List<Tile> mEnqueueBuffer = new ArrayList<>();
+  private final ThreadPoolExecutor mDecodeExecutor;
+  private final ArrayDeque<EncodedBuffer> mSpareBuffers = new ArrayDeque<>();
+  private int mSpareBufferBytes;
+
+  private float mFocalColumn;
+  private float mFocalRow;
+
+  /**
+   * @param shared True if tiles from more than one view will be queued here.
+   */
+  public TileRenderExecutor(int ioSize, int decodeSize, int handOffCapacity, boolean prioritized, boolean shared) {
+    super(ioSize, ioSize, 0L, TimeUnit.MILLISECONDS, createQueue(prioritized || shared));
+    mIsPrioritized = prioritized;
+    mIsShared = shared;
+    mDecodeExecutor = new ThreadPoolExecutor(decodeSize, decodeSize, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(handOffCapacity), new BlockingHandOffPolicy());
+    // if a core thread is started by execute, the tile is handed to it directly and skips the ranking entirely
+    if (prioritized || shared) {
+      prestartAllCoreThreads();
+    }
+  }
+
+  public TileRenderExecutor(int ioSize, int decodeSize, int handOffCapacity, boolean prioritized) {
+    this(ioSize, decodeSize, handOffCapacity, prioritized, false);
+  }
+
+  public TileRenderExecutor(int ioSize, int decodeSize, boolean prioritized) {
+    this(ioSize, decodeSize, decodeSize * 2, prioritized);
+  }
+
   public TileRenderExecutor(int size) {
-    super(size, size, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    this(size, size, false);
   }
 
   public TileRenderExecutor() {
-    this(Runtime.getRuntime().availableProcessors());
+    this(getDefaultIoSize(), getDefaultDecodeSize(), false);
   }
 
-  public void queue(Set<Tile> renderSet) {
-    Iterator<Runnable> iterator = getQueue().iterator();
-    while (iterator.hasNext()) {
-      Tile tile = (Tile) iterator.next();
-      if (!renderSet.contains(tile)) {
-        tile.destroy(false);
-        iterator.remove();
+  // reads spend most of their time waiting, so there's room for more of them than there are cores
+  public static int getDefaultIoSize() {
+    return Runtime.getRuntime().availableProcessors() * 2;
+  }
+
+  public static int getDefaultDecodeSize() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  private static BlockingQueue<Runnable> createQueue(boolean prioritized) {
+    if (prioritized) {
+      return new PriorityBlockingQueue<>(INITIAL_PRIORITY_QUEUE_CAPACITY, (a, b) -> PRIORITY_COMPARATOR.compare((Tile) a, (Tile) b));
+    }
+    return new LinkedBlockingQueue<>();
+  }
+
+  public boolean isPrioritized() {
+    return mIsPrioritized;
+  }
+
+  public boolean isShared() {
+    return mIsShared;
+  }
+
+  /**
+   * Sets the point (in tile units of the current detail level) that queued tiles are ranked against when prioritized.
+   * Takes effect the next time {@link #queue(Iterable)} is called.
+   */
+  public void setFocalPoint(float column, float row) {
+    mFocalColumn = column;
+    mFocalRow = row;
+  }
+
+  public void queue(Iterable<Tile> renderTiles) {
+    queue(renderTiles, Collections.emptySet());
+  }
+
+  /**
+   * Queues idle tiles from both, with tiles to prefetch always queued behind those to render, including ones prefetched
+   * in an earlier call that are still waiting.  Tiles that are no longer wanted should already have been destroyed, which
+   * pulls them from the queue.
+   */
+  public void queue(Iterable<Tile> renderTiles, Iterable<Tile> prefetchTiles) {
+    queue(null, renderTiles, prefetchTiles);
+  }
+
+  /**
+   * As {@link #queue(Iterable, Iterable)}, leaving tiles queued by any other owner where they are.
+   *
+   * @param owner The listener the tiles were created with, or null if every queued tile belongs to the caller.
+   */
+  public void queue(Tile.Listener owner, Iterable<Tile> renderTiles, Iterable<Tile> prefetchTiles) {
+    // pull everything out of the queue - a drained tile can't be picked up by a worker, so it's ours until it's queued again.
+    // this also lets a priority queue re-rank, since it won't re-sort an element whose priority changed while it was in the heap
+    getQueue().drainTo(mDrainBuffer);
+    for (Runnable runnable : mDrainBuffer) {
+      Tile tile = (Tile) runnable;
+      if (owner == null || tile.isOwnedBy(owner)) {
+        tile.markDequeued();
+      } else {
+        // someone else's - still queued, at the rank its own view gave it
+        getQueue().offer(tile);
       }
     }
-    for (Tile tile : renderSet) {
+    mDrainBuffer.clear();
+    // anything we just drained is IDLE again, so it's picked up here
+    enqueue(renderTiles, 0);
+    enqueue(prefetchTiles, PREFETCH_PRIORITY_BIAS);
+  }
+
+  private void enqueue(Iterable<Tile> tiles, float bias) {
+    if (mIsShared) {
+      enqueueInTurn(tiles, bias);
+      return;
+    }
+    for (Tile tile : tiles) {
       if (isShutdownOrTerminating()) {
         return;
       }
-      if (tile.getState() == Tile.State.IDLE) {
+      if (tile.getState() != Tile.State.IDLE) {
+        continue;
+      }
+      if (mIsPrioritized) {
+        tile.updatePriority(mFocalColumn, mFocalRow, bias);
+      }
+      if (tile.markQueued()) {
         execute(tile);
       }
     }
   }
 
+  // rank each tile by its place in this request (nearest first, if prioritized), so every view's first tile comes before
+  // any view's second
+  private void enqueueInTurn(Iterable<Tile> tiles, float bias) {
+    for (Tile tile : tiles) {
+      if (tile.getState() != Tile.State.IDLE) {
+        continue;
+      }
+      if (mIsPrioritized) {
+        tile.updatePriority(mFocalColumn, mFocalRow, 0);
+      }
+      mEnqueueBuffer.add(tile);
+    }
+    if (mIsPrioritized) {
+      Collections.sort(mEnqueueBuffer, PRIORITY_COMPARATOR);
+    }
+    for (int i = 0; i < mEnqueueBuffer.size(); i++) {
+      if (isShutdownOrTerminating()) {
+        break;
+      }
+      Tile tile = mEnqueueBuffer.get(i);
+      tile.setPriority(i + bias);
+      if (tile.markQueued()) {
+        execute(tile);
+      }
+    }
+    mEnqueueBuffer.clear();
+  }
+
+  // called from the io stage when a tile's bytes are ready.  blocks if the hand-off is full
+  void decode(Runnable decodeTask) {
+    if (!mDecodeExecutor.isShutdown()) {
+      mDecodeExecutor.execute(decodeTask);
+    }
+  }
+
+  boolean removeDecode(Runnable decodeTask) {
+    return mDecodeExecutor.remove(decodeTask);
+  }
+
+  // patches read their pieces into these on the io stage, and give them back once they're decoded
+  EncodedBuffer obtainBuffer() {
+    synchronized (mSpareBuffers) {
+      EncodedBuffer buffer = mSpareBuffers.poll();
+      if (buffer != null) {
+        mSpareBufferBytes -= buffer.getCapacity();
+        return buffer;
+      }
+    }
+    return new EncodedBuffer();
+  }
+
+  void recycleBuffer(EncodedBuffer buffer) {
+    buffer.clear();
+    synchronized (mSpareBuffers) {
+      if (mSpareBufferBytes + buffer.getCapacity() <= MAX_SPARE_BUFFER_BYTES) {
+        mSpareBuffers.push(buffer);
+        mSpareBufferBytes += buffer.getCapacity();
+      }
+    }
+  }
+
+  // by identity - tiles are equal by key, and another view showing the same image queues tiles with the same keys
+  boolean removeQueued(Tile tile) {
+    Iterator<Runnable> iterator = getQueue().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next() == tile) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return The number of tiles waiting to be read.
+   */
+  public int getIoQueueDepth() {
+    return getQueue().size();
+  }
+
+  /**
+   * @return The number of tiles that have been read and are waiting to be decoded.
+   */
+  public int getDecodeQueueDepth() {
+    return mDecodeExecutor.getQueue().size();
+  }
+
+  public int getActiveIoCount() {
+    return getActiveCount();
+  }
+
+  public int getActiveDecodeCount() {
+    return mDecodeExecutor.getActiveCount();
+  }
+
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    mDecodeExecutor.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    mDecodeExecutor.shutdownNow();
+    return super.shutdownNow();
+  }
+
   public void cancel() {
-    for (Runnable runnable : getQueue()) {
+    cancel(null);
+  }
+
+  /**
+   * Destroys every queued tile created with this owner, or every queued tile if the owner is null.
+   */
+  public void cancel(Tile.Listener owner) {
+    getQueue().drainTo(mDrainBuffer);
+    for (Runnable runnable : mDrainBuffer) {
       Tile tile = (Tile) runnable;
-      tile.destroy();
+      if (owner == null || tile.isOwnedBy(owner)) {
+        tile.destroy(false);
+      } else {
+        getQueue().offer(tile);
+      }
     }
-    getQueue().clear();
+    mDrainBuffer.clear();
   }
 
   private boolean isShutdownOrTerminating() {
@@ -57,5 +304,19 @@ public class TileRenderExecutor extends ThreadPoolExecutor {
     }
   }
 
-}
+  // rather than reject (or run on the io thread), wait for room in the hand-off queue
+  private static class BlockingHandOffPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        return;
+      }
+      try {
+        executor.getQueue().put(runnable);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
 
+}
@@ -1,12 +1,15 @@
 package com.moagrius.tileview;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.Region;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -19,10 +22,12 @@ import com.moagrius.tileview.io.StreamProviderAssets;
 import com.moagrius.utils.Maths;
 import com.moagrius.widget.ScalingScrollView;
 
-import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -35,18 +40,33 @@ public class TileView extends ScalingScrollView implements
 
   // constants
   private static final int RENDER_THROTTLE_ID = 0;
+  private static final long RENDER_QUIET_PERIOD_MS = 1000;
   private static final int RENDER_THROTTLE_INTERVAL = 15;
   private static final short DEFAULT_TILE_SIZE = 256;
+  private static final int PREFETCH_LOOKAHEAD_MS = 250;
 
   // variables (settable)
   private int mZoom = 0;
   private int mImageSample = 1; // sample will always be one unless we don't have a defined detail level, then its 1 shl for every zoom level from the last defined detail
   private int mTileSize = DEFAULT_TILE_SIZE;
+  private int mPrefetchDepth;
   private boolean mIsPrepared;
   private boolean mIsLaidOut;
   private boolean mHasRunOnReady;
+  private boolean mShouldPreloadFlingDestination;
+  private boolean mShouldPreloadAnimationDestination;
+  private boolean mIsPreloadingDestination;
   private Detail mCurrentDetail;
 
+  // scroll distance accumulated since the last time we computed tiles, used to estimate direction and speed of travel
+  private int mScrollDeltaX;
+  private int mScrollDeltaY;
+  private long mLastComputeTime;
+
+  // tiles created (rather than reused from the pool), in total and during the most recent computation
+  private int mTileAllocationCount;
+  private int mLastComputeAllocationCount;
+
   private Set<Listener> mListeners = new LinkedHashSet<>();
   private Set<ReadyListener> mReadyListeners = new LinkedHashSet<>();
   private Set<TouchListener> mTouchListeners = new LinkedHashSet<>();
@@ -56,35 +76,46 @@ public class TileView extends ScalingScrollView implements
   private FixedSizeViewGroup mContainer;
   private TilingBitmapView mTilingBitmapView;
   private BitmapCache mDiskCache;
-  private BitmapCache mMemoryCache;
+  private long mBuildDuration;
+  private TileCache mMemoryCache;
   private BitmapPool mBitmapPool;
+  // when set, the memory cache, pool and executor are shared with other views, and aren't ours to shut down
+  private TileEngine mEngine;
+  private TileEngine.ViewCache mEngineCache;
   private StreamProvider mStreamProvider;
   private Bitmap.Config mBitmapConfig = Bitmap.Config.RGB_565;
   private DiskCachePolicy mDiskCachePolicy = DiskCachePolicy.CACHE_PATCHES;
+  private TileRenderExecutor mExecutor = new TileRenderExecutor();
+  private boolean mWillPregeneratePatches;
+  private PatchPregenerator mPatchPregenerator;
+  // uptime of the last time tiles were queued, so background work can stay out of the way while the user is moving around
+  private volatile long mLastQueueTime;
 
   // final
   private final Grid mGrid = new Grid();
+  private final Grid mPrefetchGrid = new Grid();
   private final DetailList mDetailList = new DetailList();
   private final Map<Class<? extends Plugin>, Plugin> mPlugins = new HashMap<>();
 
-  // we keep our tiles in Sets
-  // that means we're ensured uniqueness (so we don't have to think about if a tile is already scheduled or not)
-  // and O(1) contains, as well as no penalty with foreach loops (excluding the allocation of the iterator)
+  // current tiles are kept in windows indexed by column and row, so each computation is a diff against the last grid -
+  // tiles that stay in the viewport are never looked up by hash or reallocated, only tiles entering or leaving are touched
+  // we'll use enhanced for loops without testing empty as well https://stackoverflow.com/a/20898524/6585616
+  private final TileWindow mTilesVisibleInViewport = new TileWindow();
+  // tiles just outside the viewport in the direction of travel - decoded at lower priority and never drawn until they're visible
+  private final TileWindow mPrefetchedTiles = new TileWindow();
   // we use the specific LinkedHashSet implementation to take advantage of potentially faster iteration on optimized VMS
-  // at the potential expense of more space required
   // https://lemire.me/blog/2018/03/13/iterating-over-hash-sets-quickly-in-java/
-  // we'll use enhanced for loops without testing empty as well https://stackoverflow.com/a/20898524/6585616
-  private final Set<Tile> mNewlyVisibleTiles = new LinkedHashSet<>();
-  private final Set<Tile> mTilesVisibleInViewport = new LinkedHashSet<>();
-  private final Set<Tile> mPreviouslyDrawnTiles = new LinkedHashSet<>();
+  // walked by index, so drawing them allocates nothing
+  private final List<Tile> mPreviouslyDrawnTiles = new ArrayList<>();
 
   private final Rect mViewport = new Rect();
+  private final Rect mDestinationViewport = new Rect();
   private final Rect mScaledViewport = new Rect();  // really just a buffer for unfilled region
   private final Region mUnfilledRegion = new Region();
 
   private final TilePool mTilePool = new TilePool(this::createTile);
-  private final TileRenderExecutor mExecutor = new TileRenderExecutor();
   private final Handler mRenderThrottle = new Handler(this);
+  private final ComponentCallbacks2 mMemoryTrimmer = new MemoryTrimmer();
 
   public TileView(Context context) {
     this(context, null);
@@ -193,13 +224,67 @@ public class TileView extends ScalingScrollView implements
     return mContainer;
   }
 
+  public TileRenderExecutor getRenderExecutor() {
+    return mExecutor;
+  }
+
+  /**
+   * @return The number of tiles that had to be created (rather than taken from the pool) the last time tiles were computed
+   * for the viewport.  Only tiles are counted - queueing new tiles on a FIFO executor, for one, still allocates a queue
+   * node each.  Scrolling within the current grid should create none.
+   */
+  public int getLastComputeAllocationCount() {
+    return mLastComputeAllocationCount;
+  }
+
+  /**
+   * @return How long Builder.build took, in milliseconds.  The disk cache opens in the background, so it isn't included.
+   */
+  public long getBuildDuration() {
+    return mBuildDuration;
+  }
+
+  /**
+   * @return How long the disk cache took to open, in milliseconds, on its own thread.  -1 if there's no disk cache, or it's
+   * still opening.  Until it's open, tiles are read from their source.
+   */
+  public long getDiskCacheOpenDuration() {
+    return mDiskCache instanceof DeferredBitmapCache ? ((DeferredBitmapCache) mDiskCache).getOpenDuration() : -1;
+  }
+
+  // true while tiles are waiting or decoding, or were queued within the last second (the user is likely still moving)
+  boolean isRenderingTiles(long now) {
+    if (now - mLastQueueTime < RENDER_QUIET_PERIOD_MS) {
+      return true;
+    }
+    return mExecutor.getIoQueueDepth() > 0 || mExecutor.getDecodeQueueDepth() > 0
+      || mExecutor.getActiveIoCount() > 0 || mExecutor.getActiveDecodeCount() > 0;
+  }
+
   @SuppressWarnings("unchecked")
   public <T extends Plugin> T getPlugin(Class<T> clazz) {
     return (T) mPlugins.get(clazz);
   }
 
+  // the same for the same image from one launch to the next (so long as each level's data hashes the same), and different
+  // for different images, which would otherwise read each other's tiles from disk
+  private String getDiskCacheName() {
+    int hash = mTileSize * 31 + mBitmapConfig.ordinal();
+    for (Detail detail : mDetailList) {
+      if (detail != null) {
+        hash = hash * 31 + detail.getZoom();
+        hash = hash * 31 + (detail.getData() == null ? 0 : detail.getData().hashCode());
+      }
+    }
+    return Integer.toHexString(hash);
+  }
+
   private void defineZoomLevel(int zoom, Object data) {
-    mDetailList.set(zoom, new Detail(zoom, data));
+    Detail detail = new Detail(zoom, data);
+    if (mEngine != null) {
+      detail.setNamespace(mEngineCache.getNamespace(data, mTileSize, mBitmapConfig));
+    }
+    mDetailList.set(zoom, detail);
     determineCurrentDetail();
   }
 
@@ -212,6 +297,86 @@ public class TileView extends ScalingScrollView implements
     }
   }
 
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    getContext().getApplicationContext().registerComponentCallbacks(mMemoryTrimmer);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    getContext().getApplicationContext().unregisterComponentCallbacks(mMemoryTrimmer);
+  }
+
+  /**
+   * Sheds memory, a step at a time, according to how much pressure the system says it's under.  This is called
+   * automatically while the TileView is attached to a window.  Budgets are fractions of what each was built with, and
+   * pooled tiles (not their bitmaps) and previously drawn tiles that are off screen are always released.
+   *
+   * RUNNING_MODERATE: bitmap pool to 50%.
+   * RUNNING_LOW: bitmap pool emptied, memory cache to 75%.
+   * RUNNING_CRITICAL: memory cache to 50%.
+   * UI_HIDDEN: memory cache to 50%, and every previously drawn tile is released, since none of them are on screen.
+   * BACKGROUND: memory cache to 25%.
+   * MODERATE and COMPLETE: memory cache emptied - in the background, the less we hold, the less likely we're killed.
+   *
+   * Tiles in the viewport are never released, and the caches fill back up to their full budgets as tiles are decoded.
+   */
+  public void onTrimMemory(int level) {
+    float memoryCacheFraction;
+    float bitmapPoolFraction;
+    boolean isHidden = level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      memoryCacheFraction = 0;
+      bitmapPoolFraction = 0;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+      memoryCacheFraction = 0.25f;
+      bitmapPoolFraction = 0;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      memoryCacheFraction = 0.5f;
+      bitmapPoolFraction = 0;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      memoryCacheFraction = 0.75f;
+      bitmapPoolFraction = 0;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      memoryCacheFraction = 1;
+      bitmapPoolFraction = 0.5f;
+    } else {
+      return;
+    }
+    // released tiles send their bitmaps to the memory cache, so do this first
+    releasePreviouslyDrawnTiles(isHidden);
+    if (mMemoryCache != null) {
+      mMemoryCache.trim(memoryCacheFraction);
+    }
+    // our share of a shared cache is only what we put in it - once we're in the background, everything else in the engine
+    // (what other views hold, and what's left behind by views that are gone) has to go too
+    if (mEngine != null && level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      mEngine.trim(memoryCacheFraction, bitmapPoolFraction);
+    }
+    // and the memory cache sends what it evicts to the pool
+    if (mBitmapPool != null) {
+      mBitmapPool.trim(bitmapPoolFraction);
+    }
+    mTilePool.clear();
+  }
+
+  private void releasePreviouslyDrawnTiles(boolean includeOnScreen) {
+    boolean released = false;
+    for (int i = mPreviouslyDrawnTiles.size() - 1; i >= 0; i--) {
+      Tile tile = mPreviouslyDrawnTiles.get(i);
+      if (includeOnScreen || !Rect.intersects(tile.getDrawingRect(), mScaledViewport)) {
+        tile.destroy();
+        mPreviouslyDrawnTiles.remove(i);
+        released = true;
+      }
+    }
+    if (released) {
+      mTilingBitmapView.invalidate();
+    }
+  }
+
   @Override
   public boolean onInterceptTouchEvent(MotionEvent event) {
     boolean result = super.onInterceptTouchEvent(event);
@@ -237,12 +402,85 @@ public class TileView extends ScalingScrollView implements
   @Override
   protected void onScrollChanged(int x, int y, int previousX, int previousY) {
     super.onScrollChanged(x, y, previousX, previousY);
+    mScrollDeltaX += x - previousX;
+    mScrollDeltaY += y - previousY;
     updateViewportAndComputeTilesThrottled();
     for (Listener listener : mListeners) {
       listener.onScrollChanged(x, y);
     }
   }
 
+  // we know where a fling is going to end up before the first frame, so start on those tiles now, and don't bother with
+  // anything we'd only pass over on the way there
+  @Override
+  protected void onFlingStart(int finalX, int finalY) {
+    super.onFlingStart(finalX, finalY);
+    if (!mShouldPreloadFlingDestination || !isReady()) {
+      return;
+    }
+    mDestinationViewport.set(finalX, finalY, finalX + getMeasuredWidth(), finalY + getMeasuredHeight());
+    preloadDestination(mDestinationViewport, getScale(), mCurrentDetail, mImageSample);
+  }
+
+  @Override
+  protected void onFlingEnd() {
+    super.onFlingEnd();
+    finishPreloadingDestination();
+  }
+
+  // same idea as flings - smooth scales (including double tap) know the final scale and position before the first frame,
+  // so resolve the detail level and grid we'll land on and start on those tiles, rather than re-gridding every frame
+  @Override
+  protected void onZoomScrollAnimationStart(int finalX, int finalY, float finalScale) {
+    super.onZoomScrollAnimationStart(finalX, finalY, finalScale);
+    if (!mShouldPreloadAnimationDestination || !isReady()) {
+      return;
+    }
+    int zoom = Detail.getZoomFromPercent(finalScale);
+    Detail detail = getDetailForZoom(zoom);
+    if (detail == null) {
+      return;
+    }
+    int imageSample = 1 << (zoom - detail.getZoom());
+    // the animator doesn't know about the content size at the final scale, so constrain here the way scrollTo will
+    float contentScale = finalScale / getScale();
+    int maximumX = Math.max(0, (int) (getContentWidth() * contentScale) - getMeasuredWidth());
+    int maximumY = Math.max(0, (int) (getContentHeight() * contentScale) - getMeasuredHeight());
+    int x = Math.max(0, Math.min(finalX, maximumX));
+    int y = Math.max(0, Math.min(finalY, maximumY));
+    mDestinationViewport.set(x, y, x + getMeasuredWidth(), y + getMeasuredHeight());
+    preloadDestination(mDestinationViewport, finalScale, detail, imageSample);
+  }
+
+  @Override
+  protected void onZoomScrollAnimationEnd() {
+    super.onZoomScrollAnimationEnd();
+    finishPreloadingDestination();
+  }
+
+  // the destination tiles are treated as prefetched until we get there, at which point the normal computation promotes
+  // them to visible.  until then, we stop computing tiles for the viewport
+  private void preloadDestination(Rect viewport, float scale, Detail detail, int imageSample) {
+    mIsPreloadingDestination = true;
+    float tileSize = mTileSize * scale * detail.getSample();
+    populateGrid(mPrefetchGrid, viewport, tileSize, imageSample);
+    // whatever was prefetched before this and isn't at the destination is no longer useful
+    updatePrefetchedTiles(detail, imageSample);
+    if (mExecutor.isPrioritized()) {
+      mExecutor.setFocalPoint(viewport.exactCenterX() / tileSize, viewport.exactCenterY() / tileSize);
+    }
+    mLastQueueTime = SystemClock.uptimeMillis();
+    mExecutor.queue(this, mTilesVisibleInViewport, mPrefetchedTiles);
+  }
+
+  private void finishPreloadingDestination() {
+    if (mIsPreloadingDestination) {
+      mIsPreloadingDestination = false;
+      mRenderThrottle.removeMessages(RENDER_THROTTLE_ID);
+      updateViewportAndComputeTiles();
+    }
+  }
+
   @Override
   public void onScaleChanged(ScalingScrollView scalingScrollView, float currentScale, float previousScale) {
     for (Listener listener : mListeners) {
@@ -252,13 +490,7 @@ public class TileView extends ScalingScrollView implements
     mZoom = Detail.getZoomFromPercent(currentScale);
     boolean zoomChanged = mZoom != previousZoom;
     if (zoomChanged) {
-      mPreviouslyDrawnTiles.clear();
-      for (Tile tile : mTilesVisibleInViewport) {
-        if (tile.getState() == Tile.State.DECODED) {
-          mPreviouslyDrawnTiles.add(tile);
-        }
-      }
-      mTilesVisibleInViewport.clear();
+      releaseVisibleTiles();
       determineCurrentDetail();
     }
     updateViewportAndComputeTilesThrottled();
@@ -272,36 +504,59 @@ public class TileView extends ScalingScrollView implements
     }
   }
 
+  // the visible tiles can't be diffed against a grid of another detail level or sample - keep whatever's decoded on screen
+  // until the new tiles cover it, and let everything else go back to the pool.  while preloading a destination nothing
+  // new is computed for the viewport, so what's already standing in from an earlier crossing is all there is to draw -
+  // keep it until the destination is reached, and drawing lets it go as it's covered or scrolls off
+  private void releaseVisibleTiles() {
+    if (!mIsPreloadingDestination) {
+      for (int i = 0; i < mPreviouslyDrawnTiles.size(); i++) {
+        mPreviouslyDrawnTiles.get(i).destroy();
+      }
+      mPreviouslyDrawnTiles.clear();
+    }
+    for (Tile tile : mTilesVisibleInViewport) {
+      if (tile.getState() == Tile.State.DECODED) {
+        mPreviouslyDrawnTiles.add(tile);
+      } else {
+        // anything still queued or decoding is for the wrong zoom now
+        tile.destroy();
+      }
+    }
+    mTilesVisibleInViewport.clear();
+  }
+
   private void determineCurrentDetail() {
+    Detail detail = getDetailForZoom(mZoom);
+    if (detail != null) {
+      mCurrentDetail = detail;
+      // if we're using the detail level of a lower zoom, patch together bitmaps from that detail level, 1 shl for every
+      // zoom level from it.  so if we have a detail level defined for zoom level 1 (sample 2) but are on zoom level 2
+      // (sample 4) we want an actual sample of 2.  an exact match gets a sample of 1
+      mImageSample = 1 << (mZoom - mCurrentDetail.getZoom());
+    }
+  }
+
+  private Detail getDetailForZoom(int zoom) {
     // if zoom from scale is greater than the number of defined detail levels, we definitely don't have it
     // since it's not an exact match, we need to patch together bitmaps from the last known zoom level
-    // so if we have a detail level defined for zoom level 1 (sample 2) but are on zoom level 2 (sample 4) we want an actual sample of 2
-    // similarly if we have definition for sample zoom 1 / sample 2 and are on zoom 3 / sample 8, we want actual sample of 4
-    // this is also the case for the third block, below.
-    if (mZoom >= mDetailList.size()) {
-      mCurrentDetail = mDetailList.getHighestDefined();
-      int zoomDelta = mZoom - mCurrentDetail.getZoom();
-      mImageSample = 1 << zoomDelta;
-      return;
+    if (zoom >= mDetailList.size()) {
+      return mDetailList.getHighestDefined();
     }
-    // best case, it's an exact match, use that and set sample to 1
-    Detail exactMatch = mDetailList.get(mZoom);
+    // best case, it's an exact match
+    Detail exactMatch = mDetailList.get(zoom);
     if (exactMatch != null) {
-      mCurrentDetail = exactMatch;
-      mImageSample = 1;
-      return;
+      return exactMatch;
     }
     // it's not bigger than what we have defined, but we don't have an exact match, start at the requested zoom and work back
     // toward 0 (full size) until we find any defined detail level
-    for (int i = mZoom - 1; i >= 0; i--) {
+    for (int i = zoom - 1; i >= 0; i--) {
       Detail current = mDetailList.get(i);
       if (current != null) {  // if it's defined
-        mCurrentDetail = current;
-        int zoomDelta = mZoom - mCurrentDetail.getZoom();
-        mImageSample = 1 << zoomDelta;
-        return;
+        return current;
       }
     }
+    return null;
   }
 
   private void establishDirtyRegion() {
@@ -321,18 +576,19 @@ public class TileView extends ScalingScrollView implements
     if (mUnfilledRegion.isEmpty()) {
       return;
     }
-    Iterator<Tile> iterator = mPreviouslyDrawnTiles.iterator();
-    while (iterator.hasNext()) {
-      Tile tile = iterator.next();
+    // in the order they were added, which is the order they're drawn in
+    for (int i = 0; i < mPreviouslyDrawnTiles.size(); ) {
+      Tile tile = mPreviouslyDrawnTiles.get(i);
       Rect rect = tile.getDrawingRect();
       // if no part of the rect is in the unfilled area, we don't need it
       // use quickReject instead of quickContains because the latter does not work on complex Regions
       // https://developer.android.com/reference/android/graphics/Region.html#quickContains(android.graphics.Rect)
       if (mUnfilledRegion.quickReject(rect)) {
         tile.destroy();
-        iterator.remove();
+        mPreviouslyDrawnTiles.remove(i);
       } else {
         tile.draw(canvas);
+        i++;
       }
     }
   }
@@ -373,7 +629,10 @@ public class TileView extends ScalingScrollView implements
   private void updateViewportAndComputeTiles() {
     if (isReady()) {
       updateViewport();
-      computeAndRenderTilesInViewport();
+      // the viewport still needs to be current for drawing, but we skip tiles we'd only see for a frame or two
+      if (!mIsPreloadingDestination) {
+        computeAndRenderTilesInViewport();
+      }
     }
   }
 
@@ -402,51 +661,173 @@ public class TileView extends ScalingScrollView implements
     );
   }
 
+  // the size of a single tile of the current detail level, in scaled (on screen) pixels
+  private float getScaledTileSize() {
+    return mTileSize * getScale() * mCurrentDetail.getSample();
+  }
+
   public void populateTileGridFromViewport() {
-    float tileSize = mTileSize * getScale() * mCurrentDetail.getSample();
-    mGrid.rows.start = Maths.roundDownWithStep(mViewport.top / tileSize, mImageSample);
-    mGrid.rows.end = Maths.roundUpWithStep(mViewport.bottom / tileSize, mImageSample);
-    mGrid.columns.start = Maths.roundDownWithStep(mViewport.left / tileSize, mImageSample);
-    mGrid.columns.end = Maths.roundUpWithStep(mViewport.right / tileSize, mImageSample);
+    populateGrid(mGrid, mViewport, getScaledTileSize(), mImageSample);
+  }
+
+  private void populateGrid(Grid grid, Rect viewport, float tileSize, int imageSample) {
+    grid.rows.start = Maths.roundDownWithStep(viewport.top / tileSize, imageSample);
+    grid.rows.end = Maths.roundUpWithStep(viewport.bottom / tileSize, imageSample);
+    grid.columns.start = Maths.roundDownWithStep(viewport.left / tileSize, imageSample);
+    grid.columns.end = Maths.roundUpWithStep(viewport.right / tileSize, imageSample);
   }
 
   public Tile createTile() {
+    mTileAllocationCount++;
     return new Tile(mTileSize, mBitmapConfig, this, this, mExecutor, mStreamProvider, mMemoryCache, mDiskCache, mBitmapPool, mDiskCachePolicy);
   }
 
+  private Tile obtainTile(int column, int row) {
+    return obtainTile(column, row, mCurrentDetail, mImageSample);
+  }
+
+  private Tile obtainTile(int column, int row, Detail detail, int imageSample) {
+    Tile tile = mTilePool.get();
+    tile.setColumn(column);
+    tile.setRow(row);
+    tile.setDetail(detail);
+    tile.setImageSample(imageSample);
+    return tile;
+  }
+
+  // grow the visible grid in the direction we've been scrolling, further the faster we're going
+  private void populatePrefetchGridFromVisibleGrid() {
+    mPrefetchGrid.rows.start = mGrid.rows.start;
+    mPrefetchGrid.rows.end = mGrid.rows.end;
+    mPrefetchGrid.columns.start = mGrid.columns.start;
+    mPrefetchGrid.columns.end = mGrid.columns.end;
+    long now = SystemClock.uptimeMillis();
+    long elapsed = Math.max(1, now - mLastComputeTime);
+    mLastComputeTime = now;
+    int deltaX = mScrollDeltaX;
+    int deltaY = mScrollDeltaY;
+    mScrollDeltaX = 0;
+    mScrollDeltaY = 0;
+    if (mPrefetchDepth == 0 || (deltaX == 0 && deltaY == 0)) {
+      return;
+    }
+    float tileSize = getScaledTileSize();
+    int lastColumn = Maths.roundUpWithStep(getContentWidth() / tileSize, mImageSample);
+    int lastRow = Maths.roundUpWithStep(getContentHeight() / tileSize, mImageSample);
+    int columns = getPrefetchSpan(deltaX, elapsed, tileSize);
+    int rows = getPrefetchSpan(deltaY, elapsed, tileSize);
+    if (deltaX > 0) {
+      mPrefetchGrid.columns.end = Math.min(lastColumn, mGrid.columns.end + columns);
+    } else if (deltaX < 0) {
+      mPrefetchGrid.columns.start = Math.max(0, mGrid.columns.start - columns);
+    }
+    if (deltaY > 0) {
+      mPrefetchGrid.rows.end = Math.min(lastRow, mGrid.rows.end + rows);
+    } else if (deltaY < 0) {
+      mPrefetchGrid.rows.start = Math.max(0, mGrid.rows.start - rows);
+    }
+  }
+
+  // number of tiles (rounded to the image sample) we'd cover at the current speed within the lookahead window
+  private int getPrefetchSpan(int delta, long elapsed, float tileSize) {
+    if (delta == 0) {
+      return 0;
+    }
+    float distance = Math.abs(delta) * PREFETCH_LOOKAHEAD_MS / (float) elapsed;
+    int tiles = Math.min(mPrefetchDepth, Math.max(1, (int) Math.ceil(distance / tileSize)));
+    return tiles * mImageSample;
+  }
+
   private void computeAndRenderTilesInViewport() {
+    int allocationCount = mTileAllocationCount;
+    if (!mTilesVisibleInViewport.isFor(mCurrentDetail, mImageSample)) {
+      // usually already released when the zoom changed
+      if (!mTilesVisibleInViewport.isEmpty()) {
+        releaseVisibleTiles();
+      }
+      mTilesVisibleInViewport.setDetail(mCurrentDetail, mImageSample);
+    }
     // determine which tiles should be showing.  use sample size for patching very small tiles together
-    mNewlyVisibleTiles.clear();
     populateTileGridFromViewport();
+    // anything that's left the grid is destroyed - cheap if it's still queued, and if it finished decoding the bitmap goes
+    // to the memory cache
+    Iterator<Tile> iterator = mTilesVisibleInViewport.iterator();
+    while (iterator.hasNext()) {
+      Tile tile = iterator.next();
+      if (!mGrid.contains(tile.getColumn(), tile.getRow())) {
+        tile.destroy();
+        iterator.remove();
+      }
+    }
+    // everything left is still in the viewport and keeps its state, so only cells we don't have a tile for get one
+    // anything we prefetched for that cell keeps its state (and any decoding it's already done) by moving it straight over
+    boolean canPromote = mPrefetchedTiles.isFor(mCurrentDetail, mImageSample);
+    boolean tilesWereAdded = false;
+    mTilesVisibleInViewport.ensureCapacity(mGrid.columns.getSpan(mImageSample), mGrid.rows.getSpan(mImageSample));
     for (int row = mGrid.rows.start; row < mGrid.rows.end; row += mImageSample) {
       for (int column = mGrid.columns.start; column < mGrid.columns.end; column += mImageSample) {
-        Tile tile = mTilePool.get();
-        tile.setColumn(column);
-        tile.setRow(row);
-        tile.setDetail(mCurrentDetail);
-        tile.setImageSample(mImageSample);
-        mNewlyVisibleTiles.add(tile);
+        if (mTilesVisibleInViewport.get(column, row) == null) {
+          Tile tile = canPromote ? mPrefetchedTiles.remove(column, row) : null;
+          if (tile == null) {
+            tile = obtainTile(column, row);
+          } else {
+            tile.setPrefetched(false);
+          }
+          mTilesVisibleInViewport.put(tile);
+          tilesWereAdded = true;
+        }
+      }
+    }
+    populatePrefetchGridFromVisibleGrid();
+    tilesWereAdded |= updatePrefetchedTiles(mCurrentDetail, mImageSample);
+    if (tilesWereAdded) {
+      if (mExecutor.isPrioritized()) {
+        float tileSize = getScaledTileSize();
+        mExecutor.setFocalPoint(mViewport.exactCenterX() / tileSize, mViewport.exactCenterY() / tileSize);
       }
+      mLastQueueTime = SystemClock.uptimeMillis();
+      mExecutor.queue(this, mTilesVisibleInViewport, mPrefetchedTiles);
     }
-    // update our sets to reflect the current state, schedule draws, and clean up
-    Iterator<Tile> tilesVisibleInViewportIterator = mTilesVisibleInViewport.iterator();
-    while (tilesVisibleInViewportIterator.hasNext()) {
-      Tile tile = tilesVisibleInViewportIterator.next();
-      // if a tile in the same zoom is not in the most recently computed grid, it's not longer "in viewport", remove it
-      if (!mNewlyVisibleTiles.contains(tile)) {
+    mLastComputeAllocationCount = mTileAllocationCount - allocationCount;
+  }
+
+  // same diff as the visible tiles, against the prefetch grid.  if that's at the current detail level, the viewport is a hole
+  // in it, since those cells are already covered by visible tiles
+  private boolean updatePrefetchedTiles(Detail detail, int imageSample) {
+    if (!mPrefetchedTiles.isFor(detail, imageSample)) {
+      for (Tile tile : mPrefetchedTiles) {
         tile.destroy();
-        tilesVisibleInViewportIterator.remove();
       }
+      mPrefetchedTiles.clear();
+      mPrefetchedTiles.setDetail(detail, imageSample);
     }
-    // we just removed all tiles outside of the viewport, now add any new ones that are in the viewport that weren't there the last
-    // time we performed this computation
-    // we use add all instead of straight replacement because lets say tile(3:2) was being decoded - when tile(3:2) comes up in
-    // mNewlyVisibleTiles, it won't be added to mTilesVisibleInViewport because Tile.equals will return true
-    // if we just swapped out the set (mTilesVisibleInViewport = mNewlyVisibleTiles), all those tiles would lose their state
-    boolean tilesWereAdded = mTilesVisibleInViewport.addAll(mNewlyVisibleTiles);
-    if (tilesWereAdded) {
-      mExecutor.queue(mTilesVisibleInViewport);
+    boolean isCurrentGrid = detail == mCurrentDetail && imageSample == mImageSample;
+    Iterator<Tile> iterator = mPrefetchedTiles.iterator();
+    while (iterator.hasNext()) {
+      Tile tile = iterator.next();
+      int column = tile.getColumn();
+      int row = tile.getRow();
+      if (!mPrefetchGrid.contains(column, row) || (isCurrentGrid && mGrid.contains(column, row))) {
+        tile.destroy();
+        iterator.remove();
+      }
     }
+    boolean tilesWereAdded = false;
+    mPrefetchedTiles.ensureCapacity(mPrefetchGrid.columns.getSpan(imageSample), mPrefetchGrid.rows.getSpan(imageSample));
+    for (int row = mPrefetchGrid.rows.start; row < mPrefetchGrid.rows.end; row += imageSample) {
+      for (int column = mPrefetchGrid.columns.start; column < mPrefetchGrid.columns.end; column += imageSample) {
+        if (isCurrentGrid && mGrid.contains(column, row)) {
+          continue;
+        }
+        if (mPrefetchedTiles.get(column, row) == null) {
+          Tile tile = obtainTile(column, row, detail, imageSample);
+          tile.setPrefetched(true);
+          mPrefetchedTiles.put(tile);
+          tilesWereAdded = true;
+        }
+      }
+    }
+    return tilesWereAdded;
   }
 
   @Override
@@ -461,12 +842,45 @@ public class TileView extends ScalingScrollView implements
   }
 
   public void destroy() {
+    getContext().getApplicationContext().unregisterComponentCallbacks(mMemoryTrimmer);
+    mRenderThrottle.removeMessages(RENDER_THROTTLE_ID);
+    if (mPatchPregenerator != null) {
+      mPatchPregenerator.stop();
+      mPatchPregenerator = null;
+    }
+    if (mEngine != null) {
+      // the engine outlives us - stop our own work, and leave what we've decoded in the cache for anyone else showing it.
+      // whatever nobody else counts is dropped when we unregister
+      mExecutor.cancel(this);
+      releaseVisibleTiles();
+      releasePreviouslyDrawnTiles(true);
+      for (Tile tile : mPrefetchedTiles) {
+        tile.destroy();
+      }
+      mPrefetchedTiles.clear();
+      mEngine.unregister(mEngineCache);
+      mTilePool.clear();
+      closeDiskCache();
+      return;
+    }
     mExecutor.shutdownNow();
-    // TODO:
-    // mMemoryCache.clear();
-    // mDiskCache.clear();
+    closeDiskCache();
+    // what's on disk outlives us, but nothing in memory should
+    if (mMemoryCache != null) {
+      mMemoryCache.trim(0);
+    }
+    if (mBitmapPool != null) {
+      mBitmapPool.trim(0);
+    }
     mTilePool.clear();
-    mRenderThrottle.removeMessages(RENDER_THROTTLE_ID);
+  }
+
+  // if it's still opening, it's closed as soon as it's open
+  private void closeDiskCache() {
+    if (mDiskCache != null) {
+      mDiskCache.close();
+      mDiskCache = null;
+    }
   }
 
   private boolean isReady() {
@@ -500,17 +914,63 @@ public class TileView extends ScalingScrollView implements
         readyListener.onReady(this);
       }
       mReadyListeners.clear();
+      startPregeneratingPatches();
       return true;
     }
     return false;
   }
 
+  private void startPregeneratingPatches() {
+    if (!mWillPregeneratePatches || mDiskCache == null || mDiskCachePolicy == DiskCachePolicy.CACHE_NONE) {
+      return;
+    }
+    List<PatchPregenerator.Level> levels = PatchPregenerator.getLevels(mDetailList, mContainer.getMeasuredWidth(), mContainer.getMeasuredHeight(), mTileSize);
+    PatchPregenerator pregenerator = new PatchPregenerator(this, mStreamProvider, mDiskCache, mTileSize, mBitmapConfig, levels);
+    mPatchPregenerator = pregenerator;
+    if (mDiskCache instanceof DeferredBitmapCache) {
+      // it may still be opening - start once it's open, if it opens at all.  stopping first means it never starts
+      ((DeferredBitmapCache) mDiskCache).setOpenListener(cache -> {
+        if (cache != null) {
+          pregenerator.start();
+        }
+      });
+    } else {
+      pregenerator.start();
+    }
+  }
+
+  // a View already has a (protected) onConfigurationChanged, so don't implement this on TileView itself
+  private class MemoryTrimmer implements ComponentCallbacks2 {
+    @Override
+    public void onTrimMemory(int level) {
+      TileView.this.onTrimMemory(level);
+    }
+    @Override
+    public void onLowMemory() {
+      TileView.this.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+    @Override
+    public void onConfigurationChanged(Configuration configuration) {
+      // no op
+    }
+  }
+
   private static class Grid {
     Range rows = new Range();
     Range columns = new Range();
+    boolean contains(int column, int row) {
+      return columns.contains(column) && rows.contains(row);
+    }
     private static class Range {
       int start;
       int end;
+      boolean contains(int value) {
+        return value >= start && value < end;
+      }
+      // number of cells (each step wide) in the range
+      int getSpan(int step) {
+        return Math.max(0, (end - start + step - 1) / step);
+      }
     }
   }
 
@@ -518,14 +978,63 @@ public class TileView extends ScalingScrollView implements
     void install(TileView tileView);
   }
 
+  // keys are packed by TileKey
   public interface BitmapCache {
-    Bitmap get(String key);
-    Bitmap put(String key, Bitmap value);
-    Bitmap remove(String key);
+    Bitmap get(long key);
+    Bitmap put(long key, Bitmap value);
+    Bitmap remove(long key);
+    // caches that store encoded bitmaps (e.g., on disk) return a stream of that encoding, so reading it and decoding it
+    // can happen on separate threads.  tiles only read from the disk cache this way
+    default InputStream openStream(long key) {
+      return null;
+    }
+    // store the bytes a tile was decoded from, rather than encoding the bitmap again.  false if the cache doesn't take
+    // encoded bytes, in which case the bitmap is put instead
+    default boolean putEncoded(long key, byte[] bytes, int offset, int length) {
+      return false;
+    }
+    // caches that can store raw pixels keep patches that way, so a hit is a copy into a pooled bitmap rather than a
+    // decode.  putPixels returns false if the cache doesn't, in which case the bitmap is put instead
+    default boolean putPixels(long key, Bitmap bitmap) {
+      return false;
+    }
+    default boolean hasPixels(long key) {
+      return false;
+    }
+    // copies into the bitmap, which has to have the same config and a big enough allocation.  false on a miss
+    default boolean getPixels(long key, Bitmap bitmap) {
+      return false;
+    }
+    // let go of files, mappings and threads.  nothing else is called after this
+    default void close() {
+    }
+  }
+
+  // decoded tiles in memory, keyed by TileKey.  the cache holds its own reference to everything in it, so bitmaps are
+  // shared with the tiles drawing them rather than handed back and forth
+  public interface TileCache {
+    // an acquired reference, which the caller must release, or null
+    TileBitmap get(long key);
+    // takes over the caller's reference
+    void put(long key, TileBitmap bitmap);
+    // as put, but first in line to be evicted - for tiles that were prefetched and never shown
+    default void putEldest(long key, TileBitmap bitmap) {
+      put(key, bitmap);
+    }
+    // drops (and releases) the cache's reference, if it has one
+    void remove(long key);
+    // evict until no more than this fraction of the budget is used - called under memory pressure
+    default void trim(float fraction) {
+    }
   }
 
   public interface BitmapPool {
     Bitmap getBitmapForReuse(Tile tile);
+    // bitmaps that nothing holds a reference to any more, free to be decoded into
+    void put(Bitmap bitmap);
+    // evict until no more than this fraction of the budget is used - called under memory pressure
+    default void trim(float fraction) {
+    }
   }
 
   public interface Listener {
@@ -583,12 +1092,31 @@ public class TileView extends ScalingScrollView implements
 
   }
 
+  static TileCache createMemoryCache(MemoryCachePolicy policy, int size) {
+    switch (policy) {
+      case CONCURRENT:
+        return new ConcurrentMemoryCache(size);
+      case TINY_LFU:
+        return new TinyLfuMemoryCache(size);
+      default:
+        return new MemoryCache(size);
+    }
+  }
+
   public static class Builder {
 
     private TileView mTileView;
     private StreamProvider mStreamProvider;
     private int mMemoryCacheSize = (int) ((Runtime.getRuntime().maxMemory() / 1024) / 4);
     private int mDiskCacheSize = 1024 * 100;
+    private DiskCacheFormat mDiskCacheFormat = DiskCacheFormat.SOURCE;
+    private DiskCacheStorage mDiskCacheStorage = DiskCacheStorage.FILES;
+    private int mBitmapPoolSize = (int) ((Runtime.getRuntime().maxMemory() / 1024) / 16);
+    private RenderOrder mRenderOrder = RenderOrder.FIFO;
+    private MemoryCachePolicy mMemoryCachePolicy = MemoryCachePolicy.LRU;
+    private int mIoThreadCount = TileRenderExecutor.getDefaultIoSize();
+    private int mDecodeThreadCount = TileRenderExecutor.getDefaultDecodeSize();
+    private TileEngine mEngine;
 
     public Builder(TileView tileView) {
       mTileView = tileView;
@@ -647,16 +1175,108 @@ public class TileView extends ScalingScrollView implements
       return this;
     }
 
+    public Builder setDiskCacheFormat(DiskCacheFormat format) {
+      mDiskCacheFormat = format;
+      return this;
+    }
+
+    public Builder setDiskCacheStorage(DiskCacheStorage storage) {
+      mDiskCacheStorage = storage;
+      return this;
+    }
+
     public Builder setMemoryCacheSize(int memoryCacheSize) {
       mMemoryCacheSize = memoryCacheSize;
       return this;
     }
 
+    public Builder setMemoryCachePolicy(MemoryCachePolicy memoryCachePolicy) {
+      mMemoryCachePolicy = memoryCachePolicy;
+      return this;
+    }
+
     public Builder setDiskCacheSize(int diskCacheSize) {
       mDiskCacheSize = diskCacheSize;
       return this;
     }
 
+    /**
+     * Budget, in kilobytes, for bitmaps kept around to decode new tiles into.  This is separate from (and in addition to)
+     * the memory cache.
+     */
+    public Builder setBitmapPoolSize(int bitmapPoolSize) {
+      mBitmapPoolSize = bitmapPoolSize;
+      return this;
+    }
+
+    /**
+     * When greater than 0, tiles beyond the edge of the viewport in the direction of travel are decoded ahead of time,
+     * at lower priority than visible tiles.  Depth is the most tiles ahead we'll go, at full speed.
+     */
+    public Builder setPrefetchDepth(int prefetchDepth) {
+      mTileView.mPrefetchDepth = prefetchDepth;
+      return this;
+    }
+
+    /**
+     * When true, tiles for the position a fling will come to rest at start decoding as soon as the fling starts, and
+     * tiles that would only be on screen in passing are skipped.
+     */
+    public Builder setPreloadFlingDestination(boolean shouldPreloadFlingDestination) {
+      mTileView.mShouldPreloadFlingDestination = shouldPreloadFlingDestination;
+      return this;
+    }
+
+    /**
+     * When true, smooth scales (including double tap) start decoding the tiles for the scale and position they'll finish
+     * at as soon as they start, and tiles for intermediate frames are skipped.
+     */
+    public Builder setPreloadAnimationDestination(boolean shouldPreloadAnimationDestination) {
+      mTileView.mShouldPreloadAnimationDestination = shouldPreloadAnimationDestination;
+      return this;
+    }
+
+    /**
+     * Number of threads reading encoded tile data, from the disk cache or the StreamProvider.
+     * This is the most reads (e.g., network requests) that will be in flight at once.
+     */
+    public Builder setIoThreadCount(int ioThreadCount) {
+      mIoThreadCount = ioThreadCount;
+      return this;
+    }
+
+    /**
+     * Number of threads decoding tiles.  Decoding is CPU bound, so more than the number of cores rarely helps.
+     */
+    public Builder setDecodeThreadCount(int decodeThreadCount) {
+      mDecodeThreadCount = decodeThreadCount;
+      return this;
+    }
+
+    /**
+     * Shares the engine's memory cache, bitmap pool and executor with every other view built with it.  When set, this
+     * builder's memory cache, bitmap pool, thread count and render order settings are ignored in favor of the engine's.
+     */
+    public Builder setTileEngine(TileEngine engine) {
+      mEngine = engine;
+      return this;
+    }
+
+    /**
+     * Renders patches for every zoom level without a detail level of its own into the disk cache, in the background and
+     * only while the view isn't busy rendering, so zooming out later reads one cached patch per tile rather than decoding
+     * every source tile under it.  Progress is kept across launches.  Does nothing without a disk cache.
+     */
+    public Builder setPregeneratePatches(boolean pregeneratePatches) {
+      mTileView.mWillPregeneratePatches = pregeneratePatches;
+      return this;
+    }
+
+    public Builder setRenderOrder(RenderOrder renderOrder) {
+      mRenderOrder = renderOrder;
+      return this;
+    }
+
     public Builder setStreamProvider(StreamProvider streamProvider) {
       mStreamProvider = streamProvider;
       return this;
@@ -668,23 +1288,47 @@ public class TileView extends ScalingScrollView implements
       return this;
     }
 
+
     public TileView build() {
+      long start = System.nanoTime();
       // if the user provided a custom provider, use that, otherwise default to assets
       mTileView.mStreamProvider = mStreamProvider == null ? new StreamProviderAssets() : mStreamProvider;
-      // use memory cache instance for both memory cache and bitmap pool.  maybe allows these to be set in the future
-      MemoryCache memoryCache = new MemoryCache(mMemoryCacheSize);
-      mTileView.mMemoryCache = memoryCache;
-      mTileView.mBitmapPool = memoryCache;
-      // if the policy is to cache something and the size is not 0, try to create a disk cache
-      if (mTileView.mDiskCachePolicy != DiskCachePolicy.CACHE_NONE && mDiskCacheSize > 0) {
-        try {
-          // TODO: async?
-          mTileView.mDiskCache = new DiskCache(mTileView.getContext(), mDiskCacheSize);
-        } catch (IOException e) {
-          // no op
+      // the default executor hasn't started any threads yet, so it's safe to just swap it out
+      if (mEngine != null) {
+        mTileView.mEngine = mEngine;
+        mTileView.mBitmapPool = mEngine.getBitmapPool();
+        mTileView.mEngineCache = mEngine.register();
+        mTileView.mMemoryCache = mTileView.mEngineCache;
+        mTileView.mExecutor = mEngine.getExecutor();
+        // anything defined before we knew about the engine
+        for (Detail detail : mTileView.mDetailList) {
+          if (detail != null) {
+            detail.setNamespace(mTileView.mEngineCache.getNamespace(detail.getData(), mTileView.mTileSize, mTileView.mBitmapConfig));
+          }
         }
+      } else {
+        // the pool is fed by bitmaps as their last reference is released, so reuse never costs us a cache entry
+        mTileView.mBitmapPool = new BucketedBitmapPool(mBitmapPoolSize);
+        mTileView.mMemoryCache = createMemoryCache(mMemoryCachePolicy, mMemoryCacheSize);
+        mTileView.mExecutor = new TileRenderExecutor(mIoThreadCount, mDecodeThreadCount, mRenderOrder == RenderOrder.DISTANCE_FROM_CENTER);
+      }
+      // if the policy is to cache something and the size is not 0, create a disk cache.  opening it can mean reading a
+      // large journal, so that happens on its own thread, and it's attached to tiles as soon as it's ready
+      if (mTileView.mDiskCachePolicy != DiskCachePolicy.CACHE_NONE && mDiskCacheSize > 0) {
+        Context context = mTileView.getContext();
+        int size = mDiskCacheSize;
+        DiskCacheFormat format = mDiskCacheFormat;
+        DiskCacheStorage storage = mDiskCacheStorage;
+        String name = mTileView.getDiskCacheName();
+        mTileView.mDiskCache = new DeferredBitmapCache(() -> {
+          if (storage != DiskCacheStorage.FILES) {
+            return new PackDiskCache(context, size, format, storage == DiskCacheStorage.PACK_RAW_PATCHES, name);
+          }
+          return new DiskCache(context, size, format, name);
+        });
       }
       mTileView.prepare();
+      mTileView.mBuildDuration = (System.nanoTime() - start) / 1000000;
       return mTileView;
     }
 
@@ -694,4 +1338,44 @@ public class TileView extends ScalingScrollView implements
     CACHE_NONE, CACHE_PATCHES, CACHE_ALL
   }
 
+  /**
+   * SOURCE stores a tile exactly as its StreamProvider gave it (e.g., the original jpeg), so nothing is encoded on the way
+   * in, and hits decode the same compact format.  Patches are composites with no source of their own, so they're always
+   * stored as PNG.
+   * PNG stores every tile as a PNG of its decoded bitmap.
+   */
+  public enum DiskCacheFormat {
+    SOURCE, PNG
+  }
+
+  /**
+   * FILES keeps each tile in its own file, with a journal.
+   * PACK appends tiles to a few large memory mapped files, indexed in memory - nothing to open per tile, and no journal to
+   * replay on start up.
+   * PACK_RAW_PATCHES is PACK, but patches are stored as raw pixels, so reloading one is a copy instead of a decode.  Raw
+   * patches take several times the space of a PNG.
+   */
+  public enum DiskCacheStorage {
+    FILES, PACK, PACK_RAW_PATCHES
+  }
+
+  /**
+   * FIFO decodes tiles in the order the grid is walked (row by row, from the top left).
+   * DISTANCE_FROM_CENTER decodes the tiles nearest the center of the viewport first.
+   */
+  public enum RenderOrder {
+    FIFO, DISTANCE_FROM_CENTER
+  }
+
+  /**
+   * LRU is a single synchronized, strictly least recently used cache.
+   * CONCURRENT spreads entries over independently locked stripes with approximate (CLOCK) eviction, so decode threads
+   * contend less with each other and with the UI thread.
+   * TINY_LFU only admits tiles that have been asked for more often than what they'd replace, so a long fling doesn't flush
+   * tiles the user keeps coming back to.
+   */
+  public enum MemoryCachePolicy {
+    LRU, CONCURRENT, TINY_LFU
+  }
+
 }
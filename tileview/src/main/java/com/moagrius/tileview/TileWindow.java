@@ -0,0 +1,157 @@
+package com.moagrius.tileview;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Holds the tiles for a rectangular window of cells at a single detail level and image sample, found by position rather
+ * than by hash.  Cells are stored in a ring, wrapped on column and row, so as the window moves the tiles that stay in it
+ * never move, and nothing is allocated unless the window grows larger than it's ever been.
+ *
+ * Main thread only.  The iterator is reused, so don't nest iterations over the same window.
+ */
+class TileWindow implements Iterable<Tile> {
+
+  private static final Tile[] NO_CELLS = {};
+
+  private final CellIterator mIterator = new CellIterator();
+
+  private Tile[] mCells = NO_CELLS;
+  private int mColumnCapacity;
+  private int mRowCapacity;
+  private int mSize;
+  private Detail mDetail;
+  private int mImageSample = 1;
+
+  boolean isFor(Detail detail, int imageSample) {
+    return mDetail == detail && mImageSample == imageSample;
+  }
+
+  // only call this when empty - tiles already held are indexed by the previous sample
+  void setDetail(Detail detail, int imageSample) {
+    mDetail = detail;
+    mImageSample = imageSample;
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  private static int wrap(int value, int capacity) {
+    int wrapped = value % capacity;
+    return wrapped < 0 ? wrapped + capacity : wrapped;
+  }
+
+  private int indexOf(int column, int row) {
+    return wrap(row / mImageSample, mRowCapacity) * mColumnCapacity + wrap(column / mImageSample, mColumnCapacity);
+  }
+
+  Tile get(int column, int row) {
+    if (mSize == 0) {
+      return null;
+    }
+    Tile tile = mCells[indexOf(column, row)];
+    // the ring wraps, so make sure it's the tile at this position and not one a full window away
+    if (tile != null && tile.getColumn() == column && tile.getRow() == row) {
+      return tile;
+    }
+    return null;
+  }
+
+  // the cell must be empty, and the window must have room for it (see ensureCapacity)
+  void put(Tile tile) {
+    mCells[indexOf(tile.getColumn(), tile.getRow())] = tile;
+    mSize++;
+  }
+
+  Tile remove(int column, int row) {
+    Tile tile = get(column, row);
+    if (tile != null) {
+      mCells[indexOf(column, row)] = null;
+      mSize--;
+    }
+    return tile;
+  }
+
+  // make room for a window this many cells wide and tall without it wrapping onto itself.  anything held should already be
+  // inside the new window, otherwise two tiles may land in the same cell
+  void ensureCapacity(int columns, int rows) {
+    if (columns <= mColumnCapacity && rows <= mRowCapacity) {
+      return;
+    }
+    Tile[] previous = mCells;
+    mColumnCapacity = Math.max(columns, mColumnCapacity);
+    mRowCapacity = Math.max(rows, mRowCapacity);
+    mCells = new Tile[mColumnCapacity * mRowCapacity];
+    for (Tile tile : previous) {
+      if (tile != null) {
+        mCells[indexOf(tile.getColumn(), tile.getRow())] = tile;
+      }
+    }
+  }
+
+  // forget every tile without destroying any - the caller is expected to have dealt with them
+  void clear() {
+    if (mSize > 0) {
+      for (int i = 0; i < mCells.length; i++) {
+        mCells[i] = null;
+      }
+      mSize = 0;
+    }
+  }
+
+  @Override
+  public Iterator<Tile> iterator() {
+    mIterator.reset();
+    return mIterator;
+  }
+
+  private class CellIterator implements Iterator<Tile> {
+
+    private int mNext;
+    private int mCurrent;
+
+    void reset() {
+      mNext = -1;
+      mCurrent = -1;
+      advance();
+    }
+
+    private void advance() {
+      mNext++;
+      while (mNext < mCells.length && mCells[mNext] == null) {
+        mNext++;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return mNext < mCells.length;
+    }
+
+    @Override
+    public Tile next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      mCurrent = mNext;
+      advance();
+      return mCells[mCurrent];
+    }
+
+    @Override
+    public void remove() {
+      if (mCurrent == -1 || mCells[mCurrent] == null) {
+        throw new IllegalStateException();
+      }
+      mCells[mCurrent] = null;
+      mSize--;
+    }
+
+  }
+
+}
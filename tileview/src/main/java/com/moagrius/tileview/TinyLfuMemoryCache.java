@@ -0,0 +1,306 @@
+package com.moagrius.tileview;
+
+/**
+ * A memory cache (packed TileKey to TileBitmap) that resists scans, using W-TinyLFU.  New entries land in a small LRU window.
+ * When they fall out of it, they're only admitted to the main space if a frequency sketch says they've been asked for
+ * more often than whatever they'd push out.  So a fling across the map, which brings in hundreds of tiles that are never
+ * seen again, can't flush the tiles around somewhere the user keeps coming back to.
+ *
+ * The main space is a segmented LRU - entries start in probation, and move to protected when hit again.
+ * Frequency is recorded on lookup (every tile looks itself up before decoding), and survives entries leaving the cache.
+ *
+ * How big the window should be depends on how recency-bound the user is - panning back and forth over the same few
+ * screens wants a large one, returning to a few places after long flings a small one - so it isn't fixed.  It's adjusted
+ * by hill climbing: every sample period, it's moved a step in whichever direction last improved the hit rate, with the
+ * steps shrinking as it settles, and starting over if the hit rate moves sharply.
+ */
+public class TinyLfuMemoryCache implements TileView.TileCache {
+
+  private static final int INITIAL_WINDOW_PERCENT = 50;
+  private static final int MIN_WINDOW_PERCENT = 1;
+  private static final int MAX_WINDOW_PERCENT = 100;
+  private static final int PROTECTED_PERCENT = 80;
+  // hill climbing - a sample is this many lookups per entry held, a first step is this fraction of the budget, and each
+  // step after is this much smaller than the one before, until the hit rate changes by more than the restart threshold
+  private static final int SAMPLE_LOOKUPS_PER_ENTRY = 10;
+  private static final int MIN_SAMPLE_SIZE = 256;
+  private static final float INITIAL_STEP_FRACTION = 0.125f;
+  private static final float STEP_DECAY = 0.98f;
+  private static final float RESTART_THRESHOLD = 0.05f;
+  // the smallest tile we expect to hold, in kilobytes (e.g., a 128px ARGB_8888 tile) - the sketch is sized up front for
+  // as many of them as fit, since it can't grow without forgetting what it's counted
+  private static final int MIN_ENTRY_SIZE = 32;
+
+  private final LongLruMap<TileBitmap> mWindow = new LongLruMap<>();
+  private final LongLruMap<TileBitmap> mProbation = new LongLruMap<>();
+  private final LongLruMap<TileBitmap> mProtected = new LongLruMap<>();
+  private final FrequencySketch mSketch;
+
+  private final int mMaxSize;
+  private int mMaxWindowSize;
+  private int mMaxMainSize;
+  private int mMaxProtectedSize;
+  private int mWindowSize;
+  private int mProbationSize;
+  private int mProtectedSize;
+
+  private int mSampleCount;
+  private int mHitCount;
+  // nothing to compare the first sample to
+  private float mPreviousHitRate = Float.NaN;
+  private float mStepSize;
+  private float mStep;
+
+  public TinyLfuMemoryCache(int maxSize) {
+    mMaxSize = maxSize;
+    mSketch = new FrequencySketch(Math.max(1, maxSize / MIN_ENTRY_SIZE));
+    mStepSize = maxSize * INITIAL_STEP_FRACTION;
+    mStep = mStepSize;
+    setMaxWindowSize(maxSize * INITIAL_WINDOW_PERCENT / 100);
+  }
+
+  int getMaxWindowSize() {
+    return mMaxWindowSize;
+  }
+
+  private void setMaxWindowSize(int maxWindowSize) {
+    int min = Math.max(1, mMaxSize * MIN_WINDOW_PERCENT / 100);
+    int max = Math.max(min, mMaxSize * MAX_WINDOW_PERCENT / 100);
+    mMaxWindowSize = Math.max(min, Math.min(max, maxWindowSize));
+    mMaxMainSize = Math.max(0, mMaxSize - mMaxWindowSize);
+    mMaxProtectedSize = mMaxMainSize * PROTECTED_PERCENT / 100;
+  }
+
+  private static int sizeOf(TileBitmap bitmap) {
+    return bitmap.getSize();
+  }
+
+  @Override
+  public synchronized TileBitmap get(long key) {
+    mSketch.increment(key);
+    TileBitmap bitmap = find(key);
+    boolean isHit = bitmap != null && bitmap.acquire();
+    sample(isHit);
+    return isHit ? bitmap : null;
+  }
+
+  private void sample(boolean isHit) {
+    mSampleCount++;
+    if (isHit) {
+      mHitCount++;
+    }
+    int entryCount = mWindow.size() + mProbation.size() + mProtected.size();
+    if (mSampleCount >= Math.max(MIN_SAMPLE_SIZE, entryCount * SAMPLE_LOOKUPS_PER_ENTRY)) {
+      climb();
+    }
+  }
+
+  // keep going the way we went if it helped, turn around if it didn't
+  private void climb() {
+    float hitRate = (float) mHitCount / mSampleCount;
+    mSampleCount = 0;
+    mHitCount = 0;
+    if (Float.isNaN(mPreviousHitRate)) {
+      mPreviousHitRate = hitRate;
+      return;
+    }
+    float change = hitRate - mPreviousHitRate;
+    if (change < 0) {
+      mStep = -mStep;
+    }
+    mStepSize = Math.abs(change) >= RESTART_THRESHOLD ? mMaxSize * INITIAL_STEP_FRACTION : mStepSize * STEP_DECAY;
+    mStep = Math.signum(mStep) * mStepSize;
+    mPreviousHitRate = hitRate;
+    int previous = mMaxWindowSize;
+    setMaxWindowSize(mMaxWindowSize + (int) mStep);
+    if (mMaxWindowSize > previous) {
+      growWindow();
+    } else if (mMaxWindowSize < previous) {
+      evict();
+    }
+  }
+
+  // the main space's least recently used entries move into the window, rather than being evicted
+  private void growWindow() {
+    demoteProtected();
+    while (mProbationSize + mProtectedSize > mMaxMainSize) {
+      LongLruMap<TileBitmap> source = !mProbation.isEmpty() ? mProbation : mProtected;
+      if (source.isEmpty()) {
+        break;
+      }
+      long key = source.eldestKey();
+      TileBitmap bitmap = source.remove(key);
+      int size = sizeOf(bitmap);
+      if (source == mProbation) {
+        mProbationSize -= size;
+      } else {
+        mProtectedSize -= size;
+      }
+      mWindow.put(key, bitmap);
+      mWindowSize += size;
+    }
+  }
+
+  private TileBitmap find(long key) {
+    TileBitmap bitmap = mWindow.get(key);
+    if (bitmap != null) {
+      return bitmap;
+    }
+    bitmap = mProtected.get(key);
+    if (bitmap != null) {
+      return bitmap;
+    }
+    bitmap = mProbation.remove(key);
+    if (bitmap != null) {
+      int size = sizeOf(bitmap);
+      mProbationSize -= size;
+      mProtected.put(key, bitmap);
+      mProtectedSize += size;
+      demoteProtected();
+    }
+    return bitmap;
+  }
+
+  @Override
+  public synchronized void put(long key, TileBitmap value) {
+    put(key, value, false);
+  }
+
+  // the eldest in the window, so it's the next to face admission rather than the last
+  @Override
+  public synchronized void putEldest(long key, TileBitmap value) {
+    put(key, value, true);
+  }
+
+  private void put(long key, TileBitmap value, boolean isEldest) {
+    if (value == null) {
+      return;
+    }
+    if (!value.isCacheable()) {
+      value.release();
+      return;
+    }
+    // if it's the one we already had, we only need the one reference
+    TileBitmap previous = take(key);
+    if (previous != null) {
+      previous.release();
+    }
+    if (isEldest) {
+      mWindow.putEldest(key, value);
+    } else {
+      mWindow.put(key, value);
+    }
+    mWindowSize += sizeOf(value);
+    evict();
+  }
+
+  @Override
+  public synchronized void remove(long key) {
+    TileBitmap bitmap = take(key);
+    if (bitmap != null) {
+      bitmap.release();
+    }
+  }
+
+  private TileBitmap take(long key) {
+    TileBitmap bitmap = mWindow.remove(key);
+    if (bitmap != null) {
+      mWindowSize -= sizeOf(bitmap);
+      return bitmap;
+    }
+    bitmap = mProbation.remove(key);
+    if (bitmap != null) {
+      mProbationSize -= sizeOf(bitmap);
+      return bitmap;
+    }
+    bitmap = mProtected.remove(key);
+    if (bitmap != null) {
+      mProtectedSize -= sizeOf(bitmap);
+    }
+    return bitmap;
+  }
+
+  @Override
+  public synchronized void trim(float fraction) {
+    int maxSize = (int) (mMaxSize * fraction);
+    while (mWindowSize + mProbationSize + mProtectedSize > maxSize) {
+      if (!evictEldest()) {
+        break;
+      }
+    }
+  }
+
+  // protected overflows into the most recently used end of probation
+  private void demoteProtected() {
+    while (mProtectedSize > mMaxProtectedSize && !mProtected.isEmpty()) {
+      long key = mProtected.eldestKey();
+      TileBitmap bitmap = mProtected.remove(key);
+      int size = sizeOf(bitmap);
+      mProtectedSize -= size;
+      mProbation.put(key, bitmap);
+      mProbationSize += size;
+    }
+  }
+
+  private void evict() {
+    while (mWindowSize > mMaxWindowSize && !mWindow.isEmpty()) {
+      long key = mWindow.eldestKey();
+      TileBitmap candidate = mWindow.remove(key);
+      int size = sizeOf(candidate);
+      mWindowSize -= size;
+      admit(key, candidate, size);
+    }
+    // only if a single entry is bigger than its share
+    while (mWindowSize + mProbationSize + mProtectedSize > mMaxSize) {
+      if (!evictEldest()) {
+        break;
+      }
+    }
+  }
+
+  // make room in the main space for the candidate, if the sketch says it's more popular than the first entry it would
+  // evict.  that decides it - once anything's been evicted for the candidate, it's admitted, however many more have to go
+  private void admit(long key, TileBitmap candidate, int size) {
+    if (mProbationSize + mProtectedSize + size > mMaxMainSize) {
+      LongLruMap<TileBitmap> victims = !mProbation.isEmpty() ? mProbation : mProtected;
+      if (!victims.isEmpty() && mSketch.frequency(key) <= mSketch.frequency(victims.eldestKey())) {
+        candidate.release();
+        return;
+      }
+    }
+    while (mProbationSize + mProtectedSize + size > mMaxMainSize) {
+      LongLruMap<TileBitmap> victims = !mProbation.isEmpty() ? mProbation : mProtected;
+      if (victims.isEmpty()) {
+        break;
+      }
+      TileBitmap victim = victims.remove(victims.eldestKey());
+      if (victims == mProbation) {
+        mProbationSize -= sizeOf(victim);
+      } else {
+        mProtectedSize -= sizeOf(victim);
+      }
+      victim.release();
+    }
+    mProbation.put(key, candidate);
+    mProbationSize += size;
+  }
+
+  private boolean evictEldest() {
+    TileBitmap bitmap;
+    if (!mProbation.isEmpty()) {
+      bitmap = mProbation.remove(mProbation.eldestKey());
+      mProbationSize -= sizeOf(bitmap);
+    } else if (!mProtected.isEmpty()) {
+      bitmap = mProtected.remove(mProtected.eldestKey());
+      mProtectedSize -= sizeOf(bitmap);
+    } else if (!mWindow.isEmpty()) {
+      bitmap = mWindow.remove(mWindow.eldestKey());
+      mWindowSize -= sizeOf(bitmap);
+    } else {
+      return false;
+    }
+    bitmap.release();
+    return true;
+  }
+
+}
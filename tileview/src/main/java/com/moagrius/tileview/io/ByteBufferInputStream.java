@@ -0,0 +1,45 @@
+package com.moagrius.tileview.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a buffer from its position to its limit.  Reading moves the position, so wrap a duplicate (or slice) of any buffer
+ * that's shared.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+  private final ByteBuffer mBuffer;
+
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    mBuffer = buffer;
+  }
+
+  @Override
+  public int read() {
+    return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) {
+    if (!mBuffer.hasRemaining()) {
+      return -1;
+    }
+    int count = Math.min(length, mBuffer.remaining());
+    mBuffer.get(buffer, offset, count);
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return mBuffer.remaining();
+  }
+
+  @Override
+  public long skip(long count) {
+    int skipped = (int) Math.min(count, mBuffer.remaining());
+    mBuffer.position(mBuffer.position() + skipped);
+    return skipped;
+  }
+
+}
@@ -0,0 +1,170 @@
+package com.moagrius.tileview.io;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads tiles out of a single archive built by the tile packer, rather than one file per tile.  The archive is memory
+ * mapped once, and each tile is found by its position in its level's index, so there's no file to open and no path to
+ * format per tile.
+ *
+ * Define each zoom level with the archive's level for it as its data, e.g.
+ * {@code .defineZoomLevel(1, archive.getLevel(1))}.
+ *
+ * The format (big endian throughout):
+ * header - int magic ("TVA1"), int version, int level count, then for each level: int zoom, int columns, int rows,
+ * long index offset.
+ * index - for each level, at its index offset, a long offset and int length for each tile, row by row.  a length of 0 is
+ * a missing tile.
+ * tiles - the tiles' bytes, exactly as they were in their files.
+ */
+public class StreamProviderArchive implements StreamProvider {
+
+  public static final int MAGIC = 0x54564131;
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 12;
+  public static final int LEVEL_HEADER_SIZE = 20;
+  public static final int INDEX_ENTRY_SIZE = 12;
+
+  private final ByteBuffer mBuffer;
+  private final Level[] mLevels;
+
+  public StreamProviderArchive(File file) throws IOException {
+    try (FileInputStream inputStream = new FileInputStream(file)) {
+      mBuffer = map(inputStream.getChannel(), 0, file.length());
+    }
+    mLevels = readLevels();
+  }
+
+  /**
+   * For an archive shipped in assets - it has to be stored uncompressed for there to be anything to map, e.g.
+   * {@code aaptOptions { noCompress 'tva' }}.
+   */
+  public StreamProviderArchive(AssetFileDescriptor descriptor) throws IOException {
+    try (FileInputStream inputStream = descriptor.createInputStream()) {
+      mBuffer = map(inputStream.getChannel(), descriptor.getStartOffset(), descriptor.getLength());
+    }
+    mLevels = readLevels();
+  }
+
+  // the mapping outlives the channel
+  private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Archive is " + size + " bytes - at most " + Integer.MAX_VALUE + " can be mapped");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  private Level[] readLevels() throws IOException {
+    if (mBuffer.capacity() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a tile archive");
+    }
+    int version = mBuffer.getInt(4);
+    if (version != VERSION) {
+      throw new IOException("Unsupported tile archive version " + version);
+    }
+    int count = mBuffer.getInt(8);
+    if (count < 0 || HEADER_SIZE + (long) count * LEVEL_HEADER_SIZE > mBuffer.capacity()) {
+      throw new IOException("Invalid level count " + count);
+    }
+    Level[] levels = new Level[count];
+    for (int i = 0; i < count; i++) {
+      int position = HEADER_SIZE + i * LEVEL_HEADER_SIZE;
+      int zoom = mBuffer.getInt(position);
+      int columns = mBuffer.getInt(position + 4);
+      int rows = mBuffer.getInt(position + 8);
+      long indexOffset = mBuffer.getLong(position + 12);
+      if (columns < 0 || rows < 0 || indexOffset < 0 || indexOffset + (long) columns * rows * INDEX_ENTRY_SIZE > mBuffer.capacity()) {
+        throw new IOException("Invalid index for level " + zoom);
+      }
+      levels[i] = new Level(zoom, columns, rows, (int) indexOffset);
+    }
+    return levels;
+  }
+
+  /**
+   * @return The level packed for this zoom, to be used as the data when defining a zoom level, or null if there isn't one.
+   */
+  public Level getLevel(int zoom) {
+    for (Level level : mLevels) {
+      if (level.mZoom == zoom) {
+        return level;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public InputStream getStream(int column, int row, Context context, Object data) throws IOException {
+    Level level = (Level) data;
+    if (column < 0 || row < 0 || column >= level.mColumns || row >= level.mRows) {
+      return null;
+    }
+    int entry = level.mIndexOffset + (row * level.mColumns + column) * INDEX_ENTRY_SIZE;
+    long offset = mBuffer.getLong(entry);
+    int length = mBuffer.getInt(entry + 8);
+    if (length == 0) {
+      return null;
+    }
+    if (offset < 0 || length < 0 || offset + length > mBuffer.capacity()) {
+      throw new IOException("Invalid index entry for " + column + "," + row + " in level " + level.mZoom);
+    }
+    // positions are per buffer, and tiles are read from several threads at once
+    ByteBuffer tile = mBuffer.duplicate();
+    tile.limit((int) offset + length);
+    tile.position((int) offset);
+    return new ByteBufferInputStream(tile);
+  }
+
+  // equal only within the same archive instance, but hashed by what's in it, so anything keyed by the hash (e.g., progress
+  // pre-generating patches) holds across launches
+  public class Level {
+
+    private final int mZoom;
+    private final int mColumns;
+    private final int mRows;
+    private final int mIndexOffset;
+
+    private Level(int zoom, int columns, int rows, int indexOffset) {
+      mZoom = zoom;
+      mColumns = columns;
+      mRows = rows;
+      mIndexOffset = indexOffset;
+    }
+
+    public int getZoom() {
+      return mZoom;
+    }
+
+    public int getColumns() {
+      return mColumns;
+    }
+
+    public int getRows() {
+      return mRows;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj == this;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = mBuffer.capacity();
+      hash = hash * 31 + mZoom;
+      hash = hash * 31 + mColumns;
+      hash = hash * 31 + mRows;
+      return hash * 31 + mIndexOffset;
+    }
+
+  }
+
+}
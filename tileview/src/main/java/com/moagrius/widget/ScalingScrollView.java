@@ -117,6 +117,21 @@ public class ScalingScrollView extends ScrollView implements
     return mZoomScrollAnimator;
   }
 
+  /**
+   * Called when a smooth scale or scroll animation starts, with the scroll position and scale it will finish at.
+   * The scroll position is not yet constrained to the content size at the final scale.
+   */
+  protected void onZoomScrollAnimationStart(int finalX, int finalY, float finalScale) {
+
+  }
+
+  /**
+   * Called when a smooth scale or scroll animation finishes or is cancelled.
+   */
+  protected void onZoomScrollAnimationEnd() {
+
+  }
+
   // scale limits
 
   private void calculateMinimumScaleToFit() {
@@ -380,7 +395,13 @@ public class ScalingScrollView extends ScrollView implements
 
     @Override
     public void onAnimationStart(Animator animator) {
-
+      ScalingScrollView scalingScrollView = mScalingScrollViewWeakReference.get();
+      if (scalingScrollView != null) {
+        int x = mHasPendingScrollUpdates ? mEndState.x : scalingScrollView.getScrollX();
+        int y = mHasPendingScrollUpdates ? mEndState.y : scalingScrollView.getScrollY();
+        float scale = mHasPendingZoomUpdates ? mEndState.scale : scalingScrollView.getScale();
+        scalingScrollView.onZoomScrollAnimationStart(x, y, scale);
+      }
     }
 
     @Override
@@ -388,6 +409,7 @@ public class ScalingScrollView extends ScrollView implements
       ScalingScrollView scalingScrollView = mScalingScrollViewWeakReference.get();
       if (scalingScrollView != null) {
         scalingScrollView.setIsScaling(false);
+        scalingScrollView.onZoomScrollAnimationEnd();
       }
     }
 
@@ -396,6 +418,7 @@ public class ScalingScrollView extends ScrollView implements
       ScalingScrollView scalingScrollView = mScalingScrollViewWeakReference.get();
       if (scalingScrollView != null) {
         scalingScrollView.setIsScaling(false);
+        scalingScrollView.onZoomScrollAnimationEnd();
       }
     }
 
@@ -67,6 +67,7 @@ public class ScrollView extends FrameLayout {
   private boolean mIsLayoutDirty = true;
   private View mChildToScrollTo = null;
   private boolean mIsBeingDragged = false;
+  private boolean mIsFlinging;
   private VelocityTracker mVelocityTracker;
   private boolean mFillViewport;
   private boolean mSmoothScrollingEnabled = true;
@@ -260,11 +261,13 @@ public class ScrollView extends FrameLayout {
       final int maxY = Math.max(0, bottom - height);
       final int scrollY = getScrollY();
       dy = Math.max(0, Math.min(scrollY + dy, maxY)) - scrollY;
+      endFling();
       mScroller.startScroll(scrollX, scrollY, dx, dy);
       postInvalidateOnAnimation();
     } else {
       if (!mScroller.isFinished()) {
         mScroller.abortAnimation();
+        endFling();
       }
       scrollBy(dx, dy);
     }
@@ -308,6 +311,33 @@ public class ScrollView extends FrameLayout {
       if (!awakenScrollBars()) {
         postInvalidateOnAnimation();
       }
+    } else {
+      endFling();
+    }
+  }
+
+  public boolean isFlinging() {
+    return mIsFlinging;
+  }
+
+  /**
+   * Called as soon as a fling starts, with the position the fling will come to rest at.
+   */
+  protected void onFlingStart(int finalX, int finalY) {
+
+  }
+
+  /**
+   * Called when a fling either comes to rest or is interrupted (e.g., by another touch).
+   */
+  protected void onFlingEnd() {
+
+  }
+
+  private void endFling() {
+    if (mIsFlinging) {
+      mIsFlinging = false;
+      onFlingEnd();
     }
   }
 
@@ -423,6 +453,7 @@ public class ScrollView extends FrameLayout {
         }
         if (!mScroller.isFinished()) {
           mScroller.abortAnimation();
+          endFling();
         }
         mLastMotionY = (int) event.getY();
         mLastMotionX = (int) event.getX();
@@ -461,6 +492,8 @@ public class ScrollView extends FrameLayout {
           if (hasContent()) {
             if (Math.abs(velocityX) > mMinimumVelocity || Math.abs(velocityY) > mMinimumVelocity) {
               mScroller.fling(getScrollX(), getScrollY(), -velocityX, -velocityY, 0, getHorizontalScrollRange(), 0, getVerticalScrollRange());
+              mIsFlinging = true;
+              onFlingStart(mScroller.getFinalX(), mScroller.getFinalY());
               postInvalidateOnAnimation();
             }
           }
@@ -0,0 +1,122 @@
+package com.moagrius.tileview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+  private static final int EXPECTED = 1000;
+
+  private static long[] hashes(long seed, int count) {
+    Random random = new Random(seed);
+    long[] hashes = new long[count];
+    for (int i = 0; i < count; i++) {
+      hashes[i] = random.nextLong();
+    }
+    return hashes;
+  }
+
+  private static BloomFilter copy(BloomFilter filter) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    filter.writeTo(new DataOutputStream(bytes));
+    return BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  @Test
+  public void neverForgetsWhatWasAdded() {
+    BloomFilter filter = new BloomFilter(EXPECTED);
+    for (long hash : hashes(1, EXPECTED)) {
+      filter.add(hash);
+    }
+    for (long hash : hashes(1, EXPECTED)) {
+      assertTrue(filter.mightContain(hash));
+    }
+  }
+
+  // sized for about 1% - allow some slack, since it's a power of 2 of bits rather than exactly 10 per entry
+  @Test
+  public void rarelySaysMaybeToWhatWasNeverAdded() {
+    BloomFilter filter = new BloomFilter(EXPECTED);
+    for (long hash : hashes(1, EXPECTED)) {
+      filter.add(hash);
+    }
+    int falsePositives = 0;
+    for (long hash : hashes(2, 100000)) {
+      if (filter.mightContain(hash)) {
+        falsePositives++;
+      }
+    }
+    assertTrue("false positives: " + falsePositives, falsePositives < 2000);
+  }
+
+  @Test
+  public void saturatesPastTwiceWhatItWasSizedFor() {
+    BloomFilter filter = new BloomFilter(10);
+    long[] hashes = hashes(3, 21);
+    for (int i = 0; i < 20; i++) {
+      filter.add(hashes[i]);
+    }
+    assertFalse(filter.isSaturated());
+    filter.add(hashes[20]);
+    assertTrue(filter.isSaturated());
+  }
+
+  @Test
+  public void survivesARoundTrip() throws IOException {
+    BloomFilter filter = new BloomFilter(EXPECTED);
+    for (long hash : hashes(1, EXPECTED)) {
+      filter.add(hash);
+    }
+    BloomFilter read = copy(filter);
+    assertEquals(EXPECTED, read.getExpectedInsertions());
+    for (long hash : hashes(1, EXPECTED)) {
+      assertTrue(read.mightContain(hash));
+    }
+    for (long hash : hashes(2, 10000)) {
+      assertEquals(filter.mightContain(hash), read.mightContain(hash));
+    }
+  }
+
+  // the insertion count is saved too, so a filter saved nearly full doesn't come back as fresh
+  @Test
+  public void saturationSurvivesARoundTrip() throws IOException {
+    BloomFilter filter = new BloomFilter(10);
+    for (long hash : hashes(3, 21)) {
+      filter.add(hash);
+    }
+    assertTrue(copy(filter).isSaturated());
+  }
+
+  @Test
+  public void rejectsALengthThatIsNotAPowerOf2() {
+    assertRejected(3);
+    assertRejected(0);
+    assertRejected(-1);
+    assertRejected(Integer.MAX_VALUE);
+  }
+
+  private static void assertRejected(int length) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream outputStream = new DataOutputStream(bytes);
+      outputStream.writeInt(EXPECTED);
+      outputStream.writeInt(0);
+      outputStream.writeInt(length);
+      BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    } catch (IOException e) {
+      return;
+    }
+    throw new AssertionError("accepted a length of " + length);
+  }
+
+}
@@ -0,0 +1,124 @@
+package com.moagrius.tileview;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentMemoryCacheTest {
+
+  // a 256px ARGB_8888 tile, in kilobytes
+  private static final int TILE_SIZE = 256;
+  private static final int LOOKUPS_PER_THREAD = 200000;
+
+  private final CountingPool mPool = new CountingPool();
+  private final AtomicInteger mCreatedCount = new AtomicInteger();
+
+  private TileBitmap tile() {
+    mCreatedCount.incrementAndGet();
+    return new TileBitmap(null, TILE_SIZE, mPool);
+  }
+
+  @Test
+  public void smallBudgetUsesFewerStripes() {
+    // too small to split 16 ways - each stripe would get less than a tile
+    ConcurrentMemoryCache cache = new ConcurrentMemoryCache(2048);
+    assertEquals(2, cache.getStripeCount());
+    assertEquals(16, new ConcurrentMemoryCache(64 * 1024).getStripeCount());
+    assertEquals(1, new ConcurrentMemoryCache(512).getStripeCount());
+  }
+
+  @Test
+  public void smallBudgetStillHoldsTiles() {
+    ConcurrentMemoryCache cache = new ConcurrentMemoryCache(2048);
+    for (int i = 0; i < 4; i++) {
+      cache.put(TileKey.pack(0, 1, i, 0), tile());
+    }
+    assertTrue(cache.getSize() > 0);
+    int held = 0;
+    for (int i = 0; i < 4; i++) {
+      TileBitmap bitmap = cache.get(TileKey.pack(0, 1, i, 0));
+      if (bitmap != null) {
+        held++;
+        bitmap.release();
+      }
+    }
+    assertTrue(held > 0);
+  }
+
+  @Test
+  public void replacingReleasesThePrevious() {
+    ConcurrentMemoryCache cache = new ConcurrentMemoryCache(TILE_SIZE * 64);
+    long key = TileKey.pack(0, 1, 3, 4);
+    cache.put(key, tile());
+    cache.put(key, tile());
+    assertEquals(1, mPool.mPutCount);
+    TileBitmap bitmap = cache.get(key);
+    assertNotNull(bitmap);
+    bitmap.release();
+    assertEquals(TILE_SIZE, cache.getSize());
+  }
+
+  // lookups (and puts on misses) from 1, 4 and 8 threads at once, against the single-locked LRU.  prints throughput, and
+  // checks nothing is leaked or released twice under contention
+  @Test
+  public void contention() throws InterruptedException {
+    int size = TILE_SIZE * 256;
+    // once each to warm up
+    run(new ConcurrentMemoryCache(size), 1);
+    run(new MemoryCache(size), 1);
+    for (int threads : new int[] {1, 4, 8}) {
+      long concurrent = run(new ConcurrentMemoryCache(size), threads);
+      long locked = run(new MemoryCache(size), threads);
+      System.out.println(threads + " threads: concurrent " + concurrent + " lookups/ms, synchronized lru " + locked + " lookups/ms");
+    }
+  }
+
+  private long run(final TileView.TileCache cache, int threadCount) throws InterruptedException {
+    final CountDownLatch ready = new CountDownLatch(threadCount);
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final long seed = i + 1;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          PanTrace trace = new PanTrace(seed, 20000);
+          long[] keys = trace.getKeys();
+          ready.countDown();
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < LOOKUPS_PER_THREAD; j++) {
+            long key = keys[j % keys.length];
+            TileBitmap bitmap = cache.get(key);
+            if (bitmap == null) {
+              cache.put(key, tile());
+            } else {
+              bitmap.release();
+            }
+          }
+        }
+      });
+      threads[i].start();
+    }
+    ready.await();
+    long started = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = Math.max(1, (System.nanoTime() - started) / 1000000);
+    cache.trim(0);
+    // everything that went in has come back out, exactly once
+    assertEquals(mCreatedCount.get(), mPool.mPutCount);
+    return (long) threadCount * LOOKUPS_PER_THREAD / elapsed;
+  }
+
+}
@@ -0,0 +1,20 @@
+package com.moagrius.tileview;
+
+import android.graphics.Bitmap;
+
+// counts what's released to it, and never has anything to give back
+class CountingPool implements TileView.BitmapPool {
+
+  int mPutCount;
+
+  @Override
+  public Bitmap getBitmapForReuse(Tile tile) {
+    return null;
+  }
+
+  @Override
+  public synchronized void put(Bitmap bitmap) {
+    mPutCount++;
+  }
+
+}
@@ -0,0 +1,67 @@
+package com.moagrius.tileview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrequencySketchTest {
+
+  private static long key(int column) {
+    return TileKey.pack(0, 1, column, 0);
+  }
+
+  @Test
+  public void countsWhatItsSeen() {
+    FrequencySketch sketch = new FrequencySketch(64);
+    for (int i = 0; i < 5; i++) {
+      sketch.increment(key(1));
+    }
+    sketch.increment(key(2));
+    assertEquals(5, sketch.frequency(key(1)));
+    assertEquals(1, sketch.frequency(key(2)));
+    assertEquals(0, sketch.frequency(key(3)));
+  }
+
+  @Test
+  public void saturatesAt15() {
+    FrequencySketch sketch = new FrequencySketch(64);
+    for (int i = 0; i < 100; i++) {
+      sketch.increment(key(1));
+    }
+    assertEquals(15, sketch.frequency(key(1)));
+  }
+
+  // never too low, however crowded.  sized so nothing's halved along the way
+  @Test
+  public void neverUnderestimates() {
+    FrequencySketch sketch = new FrequencySketch(256);
+    for (int column = 0; column < 200; column++) {
+      for (int i = 0; i < column % 8; i++) {
+        sketch.increment(key(column));
+      }
+    }
+    for (int column = 0; column < 200; column++) {
+      assertTrue(sketch.frequency(key(column)) >= column % 8);
+    }
+  }
+
+  // 64 longs, so every counter's halved on the 640th addition
+  @Test
+  public void halvesEverythingOnceEnoughIsCounted() {
+    FrequencySketch sketch = new FrequencySketch(64);
+    for (int i = 0; i < 10; i++) {
+      sketch.increment(key(0));
+    }
+    for (int column = 1; column < 630; column++) {
+      sketch.increment(key(column));
+    }
+    int before = sketch.frequency(key(0));
+    assertTrue(before >= 10);
+    sketch.increment(key(630));
+    // the last increment may have landed on one of its counters before they were halved
+    int after = sketch.frequency(key(0));
+    assertTrue("before " + before + ", after " + after, after >= before / 2 && after <= (before + 1) / 2);
+  }
+
+}
@@ -0,0 +1,180 @@
+package com.moagrius.tileview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// journals are written the way DiskLruCache writes them - a header, then a line per change, flushed whole
+public class JournalFilterTest {
+
+  private static final String HEADER = "libcore.io.DiskLruCache\n1\n1\n1\n\n";
+  private static final int EXPECTED = 100;
+
+  private File mDirectory;
+  private File mJournalFile;
+  private File mFilterFile;
+
+  @Before
+  public void setUp() throws IOException {
+    mDirectory = Files.createTempDirectory("journal-filter").toFile();
+    mJournalFile = new File(mDirectory, "journal");
+    mFilterFile = new File(mDirectory, "tileview-cache.filter");
+  }
+
+  @After
+  public void tearDown() {
+    delete(mDirectory);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private void writeJournal(String lines, boolean append) throws IOException {
+    try (OutputStream outputStream = new FileOutputStream(mJournalFile, append)) {
+      outputStream.write(lines.getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  private JournalFilter journalFilter(int expectedEntries) {
+    return new JournalFilter(mJournalFile, mFilterFile, expectedEntries);
+  }
+
+  // what a filter that's current to the end of the journal, but holds none of it, would have saved
+  private void saveEmpty(int expectedEntries) {
+    JournalFilter journalFilter = journalFilter(expectedEntries);
+    journalFilter.save(journalFilter.create());
+  }
+
+  private static boolean contains(BloomFilter filter, String name) {
+    return filter.mightContain(JournalFilter.hash(name));
+  }
+
+  @Test
+  public void buildsFromEveryCommittedEntry() throws IOException {
+    writeJournal(HEADER + "DIRTY 1_1_0_0\nCLEAN 1_1_0_0 1024\nDIRTY 1_1_1_0\nREAD 1_1_0_0\nDIRTY 1_1_2_0\nREMOVE 1_1_2_0\n", false);
+    BloomFilter filter = journalFilter(EXPECTED).load();
+    assertTrue(contains(filter, "1_1_0_0"));
+    // never committed
+    assertFalse(contains(filter, "1_1_1_0"));
+    assertFalse(contains(filter, "1_1_2_0"));
+    assertTrue(mFilterFile.exists());
+  }
+
+  @Test
+  public void emptyWithoutAJournal() {
+    BloomFilter filter = journalFilter(EXPECTED).load();
+    assertFalse(contains(filter, "1_1_0_0"));
+  }
+
+  // the saved filter knows nothing of the first entry, so finding the second but not the first means only the lines
+  // after the saved offset were read
+  @Test
+  public void catchesUpFromWhereItWasSaved() throws IOException {
+    writeJournal(HEADER + "DIRTY 1_1_0_0\nCLEAN 1_1_0_0 1024\n", false);
+    saveEmpty(EXPECTED);
+    writeJournal("DIRTY 1_1_1_0\nCLEAN 1_1_1_0 2048\n", true);
+    BloomFilter filter = journalFilter(EXPECTED).load();
+    assertTrue(contains(filter, "1_1_1_0"));
+    assertFalse(contains(filter, "1_1_0_0"));
+  }
+
+  @Test
+  public void savesWhereItCaughtUpTo() throws IOException {
+    writeJournal(HEADER + "CLEAN 1_1_0_0 1024\n", false);
+    journalFilter(EXPECTED).load();
+    writeJournal("CLEAN 1_1_1_0 2048\n", true);
+    journalFilter(EXPECTED).load();
+    writeJournal("CLEAN 1_1_2_0 2048\n", true);
+    BloomFilter filter = journalFilter(EXPECTED).load();
+    assertTrue(contains(filter, "1_1_0_0"));
+    assertTrue(contains(filter, "1_1_1_0"));
+    assertTrue(contains(filter, "1_1_2_0"));
+  }
+
+  // DiskLruCache compacts its journal by rewriting it - here to exactly the length the filter was saved at, so only the
+  // checksum can tell
+  @Test
+  public void rebuildsWhenTheJournalWasRewritten() throws IOException {
+    writeJournal(HEADER + "CLEAN 1_1_0_0 1024\n", false);
+    saveEmpty(EXPECTED);
+    writeJournal(HEADER + "CLEAN 1_1_9_9 1024\n", false);
+    BloomFilter filter = journalFilter(EXPECTED).load();
+    assertTrue(contains(filter, "1_1_9_9"));
+  }
+
+  @Test
+  public void rebuildsWhenTheJournalIsShorterThanWhereItWasSaved() throws IOException {
+    writeJournal(HEADER + "CLEAN 1_1_0_0 1024\nCLEAN 1_1_1_0 1024\n", false);
+    saveEmpty(EXPECTED);
+    writeJournal(HEADER + "CLEAN 1_1_0_0 1024\n", false);
+    BloomFilter filter = journalFilter(EXPECTED).load();
+    assertTrue(contains(filter, "1_1_0_0"));
+  }
+
+  @Test
+  public void rebuildsWhenSavedForADifferentSize() throws IOException {
+    writeJournal(HEADER + "CLEAN 1_1_0_0 1024\n", false);
+    saveEmpty(EXPECTED);
+    BloomFilter filter = journalFilter(EXPECTED * 2).load();
+    assertTrue(contains(filter, "1_1_0_0"));
+    assertEquals(EXPECTED * 2, filter.getExpectedInsertions());
+  }
+
+  @Test
+  public void rebuildsWhenTheSavedFilterIsSaturated() throws IOException {
+    writeJournal(HEADER + "CLEAN 1_1_0_0 1024\n", false);
+    JournalFilter journalFilter = journalFilter(1);
+    BloomFilter saturated = journalFilter.create();
+    for (int i = 0; i < 3; i++) {
+      saturated.add(JournalFilter.hash("0_1_" + i + "_0"));
+    }
+    journalFilter.save(saturated);
+    BloomFilter filter = journalFilter(1).load();
+    assertTrue(contains(filter, "1_1_0_0"));
+    assertFalse(filter.isSaturated());
+  }
+
+  @Test
+  public void rebuildsWhenTheSavedFilterIsUnreadable() throws IOException {
+    writeJournal(HEADER + "CLEAN 1_1_0_0 1024\n", false);
+    saveEmpty(EXPECTED);
+    // cut off part way through the bits
+    byte[] saved = Files.readAllBytes(mFilterFile.toPath());
+    try (OutputStream outputStream = new FileOutputStream(mFilterFile)) {
+      outputStream.write(saved, 0, saved.length / 2);
+    }
+    assertTrue(contains(journalFilter(EXPECTED).load(), "1_1_0_0"));
+    // and something else entirely
+    try (OutputStream outputStream = new FileOutputStream(mFilterFile)) {
+      outputStream.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    }
+    assertTrue(contains(journalFilter(EXPECTED).load(), "1_1_0_0"));
+  }
+
+  @Test
+  public void saysMaybeToEverythingWhenTheJournalCannotBeRead() {
+    assertTrue(mJournalFile.mkdir());
+    BloomFilter filter = journalFilter(EXPECTED).load();
+    assertTrue(contains(filter, "1_1_0_0"));
+    assertTrue(contains(filter, "anything"));
+  }
+
+}
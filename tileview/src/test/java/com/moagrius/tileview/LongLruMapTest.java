@@ -0,0 +1,161 @@
+package com.moagrius.tileview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongLruMapTest {
+
+  private static List<Long> eldestFirst(LongLruMap<?> map) {
+    List<Long> keys = new ArrayList<>();
+    for (int slot = map.eldestSlot(); slot != LongLruMap.NONE; slot = map.newerSlot(slot)) {
+      keys.add(map.keyAt(slot));
+    }
+    return keys;
+  }
+
+  private static List<Long> keys(long... keys) {
+    List<Long> list = new ArrayList<>();
+    for (long key : keys) {
+      list.add(key);
+    }
+    return list;
+  }
+
+  @Test
+  public void putsGetsAndRemoves() {
+    LongLruMap<String> map = new LongLruMap<>();
+    assertNull(map.put(1, "a"));
+    assertNull(map.put(2, "b"));
+    assertEquals("a", map.put(1, "c"));
+    assertEquals(2, map.size());
+    assertEquals("c", map.get(1));
+    assertTrue(map.containsKey(2));
+    assertEquals("b", map.remove(2));
+    assertNull(map.remove(2));
+    assertFalse(map.containsKey(2));
+    assertNull(map.get(2));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void keepsAccessOrder() {
+    LongLruMap<String> map = new LongLruMap<>();
+    map.put(1, "a");
+    map.put(2, "b");
+    map.put(3, "c");
+    map.get(1);
+    assertEquals(keys(2, 3, 1), eldestFirst(map));
+    assertEquals(2, map.eldestKey());
+    // replacing counts as a use
+    map.put(2, "d");
+    assertEquals(keys(3, 1, 2), eldestFirst(map));
+    // a lookup that misses doesn't move anything
+    map.get(4);
+    map.containsKey(3);
+    assertEquals(keys(3, 1, 2), eldestFirst(map));
+  }
+
+  @Test
+  public void putEldestGoesToTheFront() {
+    LongLruMap<String> map = new LongLruMap<>();
+    map.put(1, "a");
+    map.put(2, "b");
+    assertNull(map.putEldest(3, "c"));
+    assertEquals(keys(3, 1, 2), eldestFirst(map));
+    assertEquals("b", map.putEldest(2, "d"));
+    assertEquals(keys(2, 3, 1), eldestFirst(map));
+    assertEquals("d", map.get(2));
+    assertEquals(keys(3, 1, 2), eldestFirst(map));
+  }
+
+  @Test
+  public void growingKeepsEntriesAndOrder() {
+    LongLruMap<Long> map = new LongLruMap<>(2);
+    List<Long> expected = new ArrayList<>();
+    for (long key = 0; key < 1000; key++) {
+      map.put(key * 31, key);
+      expected.add(key * 31);
+    }
+    assertEquals(1000, map.size());
+    assertEquals(expected, eldestFirst(map));
+    for (long key = 0; key < 1000; key++) {
+      assertEquals(Long.valueOf(key), map.valueAt(findSlot(map, key * 31)));
+    }
+  }
+
+  private static int findSlot(LongLruMap<?> map, long key) {
+    for (int slot = map.eldestSlot(); slot != LongLruMap.NONE; slot = map.newerSlot(slot)) {
+      if (map.keyAt(slot) == key) {
+        return slot;
+      }
+    }
+    throw new AssertionError("no slot for " + key);
+  }
+
+  @Test
+  public void clearForgetsEverything() {
+    LongLruMap<String> map = new LongLruMap<>();
+    map.put(1, "a");
+    map.put(2, "b");
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertEquals(LongLruMap.NONE, map.eldestSlot());
+    assertNull(map.get(1));
+    map.put(3, "c");
+    assertEquals(keys(3), eldestFirst(map));
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void rejectsNullValues() {
+    new LongLruMap<String>().put(1, null);
+  }
+
+  // a small table and a small range of keys, so probe runs are long and removals shift entries back often.  checked
+  // against a plain map and list after every operation
+  @Test
+  public void matchesAReferenceThroughRandomOperations() {
+    LongLruMap<Long> map = new LongLruMap<>(4);
+    Map<Long, Long> values = new HashMap<>();
+    List<Long> order = new ArrayList<>();
+    Random random = new Random(7);
+    for (int i = 0; i < 20000; i++) {
+      long key = random.nextInt(48) * 0x100000000L + random.nextInt(4);
+      long value = random.nextLong();
+      switch (random.nextInt(4)) {
+        case 0:
+          assertEquals(values.put(key, value), map.put(key, value));
+          order.remove(key);
+          order.add(key);
+          break;
+        case 1:
+          assertEquals(values.put(key, value), map.putEldest(key, value));
+          order.remove(key);
+          order.add(0, key);
+          break;
+        case 2:
+          assertEquals(values.remove(key), map.remove(key));
+          order.remove(key);
+          break;
+        default:
+          assertEquals(values.get(key), map.get(key));
+          if (values.containsKey(key)) {
+            order.remove(key);
+            order.add(key);
+          }
+      }
+      assertEquals(values.size(), map.size());
+      assertEquals(order, eldestFirst(map));
+    }
+  }
+
+}
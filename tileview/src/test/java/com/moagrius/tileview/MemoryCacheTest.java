@@ -0,0 +1,48 @@
+package com.moagrius.tileview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class MemoryCacheTest {
+
+  private static final int TILE_SIZE = 256;
+
+  private final CountingPool mPool = new CountingPool();
+
+  private TileBitmap tile() {
+    return new TileBitmap(null, TILE_SIZE, mPool);
+  }
+
+  private static long key(int column) {
+    return TileKey.pack(0, 1, column, 0);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    MemoryCache cache = new MemoryCache(TILE_SIZE * 3);
+    cache.put(key(0), tile());
+    cache.put(key(1), tile());
+    cache.put(key(2), tile());
+    cache.get(key(0)).release();
+    cache.put(key(3), tile());
+    assertNull(cache.get(key(1)));
+    assertNotNull(cache.get(key(0)));
+    assertEquals(1, mPool.mPutCount);
+  }
+
+  @Test
+  public void prefetchedTilesAreEvictedFirst() {
+    MemoryCache cache = new MemoryCache(TILE_SIZE * 3);
+    cache.put(key(0), tile());
+    cache.put(key(1), tile());
+    cache.putEldest(key(2), tile());
+    cache.put(key(3), tile());
+    assertNull(cache.get(key(2)));
+    assertNotNull(cache.get(key(0)));
+    assertNotNull(cache.get(key(1)));
+  }
+
+}
@@ -0,0 +1,218 @@
+package com.moagrius.tileview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PackDiskCacheTest {
+
+  private static final int MAX_SEGMENT_ID = (1 << 16) - 1;
+  private static final int MAX_OFFSET = (1 << 24) - 1;
+  private static final int MAX_LENGTH = (1 << 24) - 1;
+  // four segments of 16KB
+  private static final int MIN_BUDGET = 64 * 1024;
+  private static final int HEADER_SIZE = 16;
+
+  private File mDirectory;
+
+  @Before
+  public void setUp() throws IOException {
+    mDirectory = Files.createTempDirectory("pack-disk-cache").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    mDirectory.delete();
+  }
+
+  private PackDiskCache open() throws IOException {
+    return new PackDiskCache(mDirectory, MIN_BUDGET, TileView.DiskCacheFormat.SOURCE, false);
+  }
+
+  private static long key(int column) {
+    return TileKey.pack(0, 1, column, 0);
+  }
+
+  private static byte[] bytes(int column, int length) {
+    byte[] bytes = new byte[length];
+    Arrays.fill(bytes, (byte) column);
+    bytes[0] = (byte) (column >> 8);
+    return bytes;
+  }
+
+  private static byte[] read(PackDiskCache cache, long key) throws IOException {
+    try (InputStream inputStream = cache.openStream(key)) {
+      if (inputStream == null) {
+        return null;
+      }
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+      }
+      return outputStream.toByteArray();
+    }
+  }
+
+  @Test
+  public void locationsSurviveAtTheirLimits() {
+    assertLocation(0, 0, 0);
+    assertLocation(MAX_SEGMENT_ID, MAX_OFFSET, MAX_LENGTH);
+    // each field at its largest, with the rest at 0, so any overlap between fields would show
+    assertLocation(MAX_SEGMENT_ID, 0, 0);
+    assertLocation(0, MAX_OFFSET, 0);
+    assertLocation(0, 0, MAX_LENGTH);
+    assertLocation(12345, 1 << 23, 4097);
+  }
+
+  private static void assertLocation(int segmentId, int offset, int length) {
+    long location = PackDiskCache.packLocation(segmentId, offset, length);
+    assertEquals(segmentId, PackDiskCache.getSegmentId(location));
+    assertEquals(offset, PackDiskCache.getOffset(location));
+    assertEquals(length, PackDiskCache.getLength(location));
+  }
+
+  @Test
+  public void rejectsABudgetTooSmallToCompact() throws IOException {
+    try {
+      new PackDiskCache(mDirectory, MIN_BUDGET - 1, TileView.DiskCacheFormat.SOURCE, false);
+      fail("opened with " + (MIN_BUDGET - 1) + " bytes");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void readsBackWhatWasWritten() throws IOException {
+    PackDiskCache cache = open();
+    byte[] first = bytes(1, 1000);
+    byte[] second = bytes(2, 2000);
+    cache.putEncoded(key(1), first, 0, first.length);
+    // only the part given is stored
+    cache.putEncoded(key(2), bytes(9, 10), 0, 0);
+    byte[] padded = new byte[second.length + 20];
+    System.arraycopy(second, 0, padded, 10, second.length);
+    cache.putEncoded(key(2), padded, 10, second.length);
+    assertArrayEquals(first, read(cache, key(1)));
+    assertArrayEquals(second, read(cache, key(2)));
+    assertNull(read(cache, key(3)));
+    cache.close();
+  }
+
+  // the namespace only lasts as long as the process, so it's no part of the key on disk
+  @Test
+  public void ignoresTheNamespace() throws IOException {
+    PackDiskCache cache = open();
+    byte[] bytes = bytes(1, 100);
+    cache.putEncoded(TileKey.pack(3, 0, 1, 1, 0), bytes, 0, bytes.length);
+    assertArrayEquals(bytes, read(cache, TileKey.pack(5, 0, 1, 1, 0)));
+    cache.close();
+  }
+
+  @Test
+  public void rebuildsTheIndexWhenOpenedAgain() throws IOException {
+    PackDiskCache cache = open();
+    for (int column = 0; column < 8; column++) {
+      byte[] bytes = bytes(column, 1000 + column);
+      cache.putEncoded(key(column), bytes, 0, bytes.length);
+    }
+    cache.close();
+    cache = open();
+    for (int column = 0; column < 8; column++) {
+      assertArrayEquals(bytes(column, 1000 + column), read(cache, key(column)));
+    }
+    cache.close();
+  }
+
+  @Test
+  public void laterRecordsWin() throws IOException {
+    PackDiskCache cache = open();
+    byte[] first = bytes(1, 1000);
+    byte[] second = bytes(2, 500);
+    cache.putEncoded(key(1), first, 0, first.length);
+    cache.remove(key(1));
+    assertNull(read(cache, key(1)));
+    cache.putEncoded(key(1), second, 0, second.length);
+    cache.close();
+    cache = open();
+    assertArrayEquals(second, read(cache, key(1)));
+    cache.close();
+  }
+
+  // a record whose bytes don't match its checksum (a write cut off part way) ends the newest segment, and nothing after it
+  // is found again - then or on any later open
+  @Test
+  public void stopsAtATornRecord() throws IOException {
+    PackDiskCache cache = open();
+    byte[] first = bytes(1, 1000);
+    byte[] second = bytes(2, 1000);
+    cache.putEncoded(key(1), first, 0, first.length);
+    cache.putEncoded(key(2), second, 0, second.length);
+    cache.close();
+    try (RandomAccessFile segment = new RandomAccessFile(new File(mDirectory, "pack-0.dat"), "rw")) {
+      segment.seek(HEADER_SIZE + first.length + HEADER_SIZE + 10);
+      segment.write(99);
+    }
+    cache = open();
+    assertArrayEquals(first, read(cache, key(1)));
+    assertNull(read(cache, key(2)));
+    // the next record goes where the torn one was
+    byte[] third = bytes(3, 200);
+    cache.putEncoded(key(3), third, 0, third.length);
+    cache.close();
+    cache = open();
+    assertArrayEquals(first, read(cache, key(1)));
+    assertNull(read(cache, key(2)));
+    assertArrayEquals(third, read(cache, key(3)));
+    cache.close();
+  }
+
+  // five records to a 16KB segment.  the first segment is mostly removed, so its one live record is copied forward rather
+  // than lost when the segment is, while the second segment (all live) is evicted whole once there are more than four
+  @Test
+  public void compactsMostlyDeadSegmentsAndEvictsTheOldest() throws IOException {
+    PackDiskCache cache = open();
+    for (int column = 0; column < 5; column++) {
+      byte[] bytes = bytes(column, 3000);
+      cache.putEncoded(key(column), bytes, 0, bytes.length);
+    }
+    for (int column = 1; column < 5; column++) {
+      cache.remove(key(column));
+    }
+    for (int column = 5; column < 25; column++) {
+      byte[] bytes = bytes(column, 3000);
+      cache.putEncoded(key(column), bytes, 0, bytes.length);
+    }
+    assertArrayEquals(bytes(0, 3000), read(cache, key(0)));
+    assertNull(read(cache, key(5)));
+    assertArrayEquals(bytes(24, 3000), read(cache, key(24)));
+    assertEquals(4, mDirectory.listFiles().length);
+    cache.close();
+    cache = open();
+    assertArrayEquals(bytes(0, 3000), read(cache, key(0)));
+    assertNull(read(cache, key(5)));
+    assertArrayEquals(bytes(24, 3000), read(cache, key(24)));
+    cache.close();
+  }
+
+}
@@ -0,0 +1,128 @@
+package com.moagrius.tileview;
+
+import java.util.Random;
+
+/**
+ * Generates the keys a TileView looks up as a user moves around a map - every tile that enters the viewport, in order.
+ * Modelled on how maps get used: panning around a few places the user keeps coming back to, now and then a fling across
+ * the map (hundreds of tiles seen once) or a zoom, and a jump back to one of those places.  Seeded, so it's the same every
+ * run.
+ */
+class PanTrace {
+
+  private static final int COLUMNS = 256;
+  private static final int ROWS = 256;
+  private static final int VIEWPORT_COLUMNS = 6;
+  private static final int VIEWPORT_ROWS = 5;
+  private static final int HOME_COUNT = 3;
+  private static final int HOME_RADIUS = 6;
+
+  private final Random mRandom;
+  private final int[][] mHomes = new int[HOME_COUNT][2];
+  private final long[] mKeys;
+  private int mLength;
+
+  private int mZoom;
+  private int mColumn;
+  private int mRow;
+  private int mHome;
+
+  PanTrace(long seed, int moves) {
+    mRandom = new Random(seed);
+    mKeys = new long[moves * VIEWPORT_COLUMNS * VIEWPORT_ROWS];
+    for (int[] home : mHomes) {
+      home[0] = VIEWPORT_COLUMNS + mRandom.nextInt(COLUMNS - VIEWPORT_COLUMNS * 2);
+      home[1] = VIEWPORT_ROWS + mRandom.nextInt(ROWS - VIEWPORT_ROWS * 2);
+    }
+    jumpHome();
+    int moved = 0;
+    while (moved < moves) {
+      float roll = mRandom.nextFloat();
+      if (roll < 0.02f) {
+        moved += fling();
+        jumpHome();
+      } else if (roll < 0.03f) {
+        mHome = mRandom.nextInt(HOME_COUNT);
+        jumpHome();
+      } else if (roll < 0.04f) {
+        zoom();
+      } else {
+        pan();
+      }
+      moved++;
+    }
+  }
+
+  long[] getKeys() {
+    long[] keys = new long[mLength];
+    System.arraycopy(mKeys, 0, keys, 0, mLength);
+    return keys;
+  }
+
+  private int columns() {
+    return COLUMNS >> mZoom;
+  }
+
+  private int rows() {
+    return ROWS >> mZoom;
+  }
+
+  private void pan() {
+    int[] home = mHomes[mHome];
+    int homeColumn = home[0] >> mZoom;
+    int homeRow = home[1] >> mZoom;
+    int column = mColumn + mRandom.nextInt(3) - 1;
+    int row = mRow + mRandom.nextInt(3) - 1;
+    // drift back toward home
+    column = Math.max(homeColumn - HOME_RADIUS, Math.min(homeColumn + HOME_RADIUS, column));
+    row = Math.max(homeRow - HOME_RADIUS, Math.min(homeRow + HOME_RADIUS, row));
+    moveTo(column, row);
+  }
+
+  private int fling() {
+    int length = 40 + mRandom.nextInt(80);
+    int deltaColumn = mRandom.nextInt(3) - 1;
+    int deltaRow = deltaColumn == 0 ? (mRandom.nextBoolean() ? 1 : -1) : mRandom.nextInt(3) - 1;
+    for (int i = 0; i < length; i++) {
+      moveTo(mColumn + deltaColumn, mRow + deltaRow);
+    }
+    return length;
+  }
+
+  private void zoom() {
+    int zoom = 1 - mZoom;
+    int column = zoom > mZoom ? mColumn / 2 : mColumn * 2;
+    int row = zoom > mZoom ? mRow / 2 : mRow * 2;
+    mZoom = zoom;
+    enter(column, row, null);
+  }
+
+  private void jumpHome() {
+    int[] home = mHomes[mHome];
+    enter(home[0] >> mZoom, home[1] >> mZoom, null);
+  }
+
+  private void moveTo(int column, int row) {
+    int[] previous = {mColumn, mRow};
+    enter(column, row, previous);
+  }
+
+  // everything in the new viewport that wasn't in the previous one (all of it, if there wasn't one) is looked up
+  private void enter(int column, int row, int[] previous) {
+    column = Math.max(0, Math.min(columns() - VIEWPORT_COLUMNS, column));
+    row = Math.max(0, Math.min(rows() - VIEWPORT_ROWS, row));
+    for (int r = row; r < row + VIEWPORT_ROWS; r++) {
+      for (int c = column; c < column + VIEWPORT_COLUMNS; c++) {
+        boolean wasVisible = previous != null
+            && c >= previous[0] && c < previous[0] + VIEWPORT_COLUMNS
+            && r >= previous[1] && r < previous[1] + VIEWPORT_ROWS;
+        if (!wasVisible) {
+          mKeys[mLength++] = TileKey.pack(mZoom, 1, c, r);
+        }
+      }
+    }
+    mColumn = column;
+    mRow = row;
+  }
+
+}
@@ -0,0 +1,48 @@
+package com.moagrius.tileview;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PatchPregeneratorTest {
+
+  private static final int TILE_SIZE = 256;
+
+  // 4 x 4 tiles at zoom 0, so zoom 1 is 2 x 2 patches and zoom 2 is a single patch
+  @Test
+  public void levelsStopAtASinglePatch() {
+    Detail detail = new Detail(0, null);
+    List<PatchPregenerator.Level> levels = PatchPregenerator.getLevels(Collections.singletonList(detail), 1024, 1024, TILE_SIZE);
+    assertEquals(2, levels.size());
+    assertSame(detail, levels.get(0).mDetail);
+    assertEquals(2, levels.get(0).mImageSample);
+    assertEquals(2, levels.get(0).mColumns);
+    assertEquals(2, levels.get(0).mRows);
+    assertEquals(4, levels.get(1).mImageSample);
+    assertEquals(1, levels.get(1).mColumns);
+    assertEquals(1, levels.get(1).mRows);
+  }
+
+  // zoom 1 has a detail level of its own, so it's skipped, and zoom 2 reads from it
+  @Test
+  public void definedLevelsAreSkipped() {
+    Detail detail = new Detail(1, null);
+    List<PatchPregenerator.Level> levels = PatchPregenerator.getLevels(Arrays.asList(new Detail(0, null), detail), 1024, 1024, TILE_SIZE);
+    assertEquals(1, levels.size());
+    assertSame(detail, levels.get(0).mDetail);
+    assertEquals(2, levels.get(0).mImageSample);
+  }
+
+  @Test
+  public void noDetailLevelsHaveNoLevels() {
+    assertTrue(PatchPregenerator.getLevels(Collections.emptyList(), 1024, 1024, TILE_SIZE).isEmpty());
+    assertTrue(PatchPregenerator.getLevels(Arrays.asList(null, null), 1024, 1024, TILE_SIZE).isEmpty());
+  }
+
+}
@@ -0,0 +1,72 @@
+package com.moagrius.tileview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TileKeyTest {
+
+  private static final int MAX_ZOOM = 63;
+  private static final int MAX_POSITION = (1 << 20) - 1;
+
+  private static void assertRoundTrip(int namespace, int zoom, int sample, int column, int row) {
+    long key = TileKey.pack(namespace, zoom, sample, column, row);
+    assertTrue(key >= 0);
+    assertEquals(namespace, TileKey.getNamespace(key));
+    assertEquals(zoom, TileKey.getZoom(key));
+    assertEquals(sample, TileKey.getSample(key));
+    assertEquals(column, TileKey.getColumn(key));
+    assertEquals(row, TileKey.getRow(key));
+  }
+
+  @Test
+  public void unpacksWhatWasPacked() {
+    assertRoundTrip(0, 0, 1, 0, 0);
+    assertRoundTrip(3, 5, 8, 123, 456);
+    assertRoundTrip(TileKey.MAX_NAMESPACE, MAX_ZOOM, 1 << 30, MAX_POSITION, MAX_POSITION);
+  }
+
+  // each field at its largest, with the rest at 0, so any overlap between fields would show
+  @Test
+  public void fieldsDoNotOverlap() {
+    assertRoundTrip(TileKey.MAX_NAMESPACE, 0, 1, 0, 0);
+    assertRoundTrip(0, MAX_ZOOM, 1, 0, 0);
+    assertRoundTrip(0, 0, 1 << 30, 0, 0);
+    assertRoundTrip(0, 0, 1, MAX_POSITION, 0);
+    assertRoundTrip(0, 0, 1, 0, MAX_POSITION);
+  }
+
+  @Test
+  public void packsWithoutANamespaceAsNamespace0() {
+    assertEquals(TileKey.pack(0, 2, 4, 6, 8), TileKey.pack(2, 4, 6, 8));
+  }
+
+  // the disk cache's names have to match what earlier versions wrote
+  @Test
+  public void namesLeaveTheNamespaceOut() {
+    assertEquals("2_4_6_8", TileKey.toString(TileKey.pack(7, 2, 4, 6, 8)));
+    assertEquals(TileKey.toString(TileKey.pack(2, 4, 6, 8)), TileKey.toString(TileKey.pack(9, 2, 4, 6, 8)));
+  }
+
+  @Test
+  public void rejectsWhatDoesNotFit() {
+    assertRejected(-1, 0, 1, 0, 0);
+    assertRejected(TileKey.MAX_NAMESPACE + 1, 0, 1, 0, 0);
+    assertRejected(0, MAX_ZOOM + 1, 1, 0, 0);
+    assertRejected(0, 0, 0, 0, 0);
+    assertRejected(0, 0, 1, MAX_POSITION + 1, 0);
+    assertRejected(0, 0, 1, 0, MAX_POSITION + 1);
+    assertRejected(0, 0, 1, -1, 0);
+  }
+
+  private static void assertRejected(int namespace, int zoom, int sample, int column, int row) {
+    try {
+      TileKey.pack(namespace, zoom, sample, column, row);
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+    throw new AssertionError("packed namespace " + namespace + ", zoom " + zoom + ", sample " + sample + ", column " + column + ", row " + row);
+  }
+
+}
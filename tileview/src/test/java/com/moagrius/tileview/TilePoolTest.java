@@ -0,0 +1,84 @@
+package com.moagrius.tileview;
+
+import com.sun.management.ThreadMXBean;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TilePoolTest {
+
+  private int mCreatedCount;
+
+  private final TilePool mTilePool = new TilePool(() -> {
+    mCreatedCount++;
+    return new Tile(256, null, null, null, null, null, null, null, null, TileView.DiskCachePolicy.CACHE_NONE);
+  });
+
+  @Test
+  public void reusesWhatWasPut() {
+    Tile tile = mTilePool.get();
+    mTilePool.put(tile);
+    assertSame(tile, mTilePool.get());
+    assertNotSame(tile, mTilePool.get());
+    assertEquals(2, mCreatedCount);
+  }
+
+  @Test
+  public void clearForgetsEverything() {
+    Tile tile = mTilePool.get();
+    mTilePool.put(tile);
+    mTilePool.clear();
+    assertNotSame(tile, mTilePool.get());
+  }
+
+  // the same diff TileView does each time the viewport moves - tiles that leave the grid go back to the pool, and cells
+  // that come into it take one out.  once the window and pool have grown to fit, panning back and forth allocates nothing
+  @Test
+  public void panningAllocatesNothingOnceWarm() {
+    TileWindow window = new TileWindow();
+    pan(window, 200);
+    int created = mCreatedCount;
+    ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long before = bean.getThreadAllocatedBytes(threadId);
+    pan(window, 200);
+    long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+    assertEquals(created, mCreatedCount);
+    assertEquals(0, allocated);
+  }
+
+  // a 6 x 5 viewport moving a column at a time, 10 columns right and back again
+  private void pan(TileWindow window, int steps) {
+    for (int step = 0; step < steps; step++) {
+      int offset = step % 20 < 10 ? step % 10 : 10 - step % 10;
+      int columnStart = offset;
+      int columnEnd = offset + 6;
+      Iterator<Tile> iterator = window.iterator();
+      while (iterator.hasNext()) {
+        Tile tile = iterator.next();
+        if (tile.getColumn() < columnStart || tile.getColumn() >= columnEnd) {
+          iterator.remove();
+          mTilePool.put(tile);
+        }
+      }
+      window.ensureCapacity(6, 5);
+      for (int row = 0; row < 5; row++) {
+        for (int column = columnStart; column < columnEnd; column++) {
+          if (window.get(column, row) == null) {
+            Tile tile = mTilePool.get();
+            tile.setColumn(column);
+            tile.setRow(row);
+            window.put(tile);
+          }
+        }
+      }
+    }
+  }
+
+}
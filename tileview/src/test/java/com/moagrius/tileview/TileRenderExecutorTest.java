@@ -0,0 +1,237 @@
+package com.moagrius.tileview;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// the one io thread is kept busy, so everything queued stays in the queue where its order can be read
+public class TileRenderExecutorTest {
+
+  private final Tile.Listener mOwner = new Tile.Listener() {
+    @Override
+    public void onTileDestroyed(Tile tile) {
+    }
+
+    @Override
+    public void onTileDecodeError(Tile tile, Exception e) {
+    }
+  };
+  private final CountDownLatch mRelease = new CountDownLatch(1);
+  private TileRenderExecutor mExecutor;
+
+  private void start(boolean prioritized) throws InterruptedException {
+    start(prioritized, false);
+  }
+
+  private void start(boolean prioritized, boolean shared) throws InterruptedException {
+    mExecutor = new TileRenderExecutor(1, 1, 2, prioritized, shared);
+    CountDownLatch running = new CountDownLatch(1);
+    // not a tile, but it's taken by the worker before anything's drained
+    mExecutor.execute(() -> {
+      running.countDown();
+      try {
+        mRelease.await();
+      } catch (InterruptedException e) {
+        // done
+      }
+    });
+    running.await();
+  }
+
+  @After
+  public void tearDown() {
+    mRelease.countDown();
+    if (mExecutor != null) {
+      mExecutor.shutdownNow();
+    }
+  }
+
+  private Tile tile(int column, int row) {
+    return tile(mOwner, column, row);
+  }
+
+  private Tile tile(Tile.Listener owner, int column, int row) {
+    Tile tile = new Tile(256, null, null, owner, mExecutor, null, null, null, null, TileView.DiskCachePolicy.CACHE_NONE);
+    tile.setColumn(column);
+    tile.setRow(row);
+    return tile;
+  }
+
+  private List<Tile> queued() {
+    List<Tile> tiles = new ArrayList<>();
+    for (Runnable runnable : mExecutor.getQueue()) {
+      tiles.add((Tile) runnable);
+    }
+    return tiles;
+  }
+
+  // a priority queue only iterates in heap order, but drains in rank order
+  private List<Tile> ranked() {
+    List<Runnable> runnables = new ArrayList<>();
+    mExecutor.getQueue().drainTo(runnables);
+    List<Tile> tiles = new ArrayList<>();
+    for (Runnable runnable : runnables) {
+      tiles.add((Tile) runnable);
+    }
+    return tiles;
+  }
+
+  // tiles are equal by key, which needs a detail level - these have none
+  private static int position(List<Tile> tiles, Tile tile) {
+    for (int i = 0; i < tiles.size(); i++) {
+      if (tiles.get(i) == tile) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static Tile.Listener listener() {
+    return new Tile.Listener() {
+      @Override
+      public void onTileDestroyed(Tile tile) {
+      }
+
+      @Override
+      public void onTileDecodeError(Tile tile, Exception e) {
+      }
+    };
+  }
+
+  @Test
+  public void fifoQueuesNewlyVisibleTilesAheadOfEarlierPrefetch() throws InterruptedException {
+    start(false);
+    Tile visible = tile(0, 0);
+    Tile prefetched = tile(1, 0);
+    mExecutor.queue(mOwner, Collections.singletonList(visible), Collections.singletonList(prefetched));
+    assertEquals(Arrays.asList(visible, prefetched), queued());
+    // the next tick - the prefetched tile is still wanted, but a newly visible one has to go ahead of it
+    Tile newlyVisible = tile(0, 1);
+    mExecutor.queue(mOwner, Arrays.asList(visible, newlyVisible), Collections.singletonList(prefetched));
+    assertEquals(Arrays.asList(visible, newlyVisible, prefetched), queued());
+    assertEquals(Tile.State.QUEUED, prefetched.getState());
+  }
+
+  @Test
+  public void fifoLeavesOtherOwnersTilesQueued() throws InterruptedException {
+    start(false);
+    Tile.Listener other = listener();
+    Tile theirs = tile(other, 0, 0);
+    mExecutor.queue(other, Collections.singletonList(theirs), Collections.emptyList());
+    Tile ours = tile(0, 0);
+    mExecutor.queue(mOwner, Collections.singletonList(ours), Collections.emptyList());
+    assertEquals(Arrays.asList(theirs, ours), queued());
+  }
+
+  @Test
+  public void prioritizedQueuesNearestTheFocalPointFirst() throws InterruptedException {
+    start(true);
+    mExecutor.setFocalPoint(5, 5);
+    Tile far = tile(0, 0);
+    Tile middle = tile(8, 5);
+    Tile near = tile(4, 4);
+    // right next to the focal point, but not on screen
+    Tile prefetched = tile(5, 5);
+    mExecutor.queue(mOwner, Arrays.asList(far, middle, near), Collections.singletonList(prefetched));
+    assertEquals(Arrays.asList(near, middle, far, prefetched), ranked());
+  }
+
+  // a priority queue won't re-sort what's already in it, so this only holds because queueing drains and re-ranks
+  @Test
+  public void prioritizedReranksWhenTheFocalPointMoves() throws InterruptedException {
+    start(true);
+    Tile left = tile(0, 0);
+    Tile middle = tile(4, 0);
+    Tile right = tile(8, 0);
+    mExecutor.setFocalPoint(9, 0);
+    mExecutor.queue(mOwner, Arrays.asList(left, middle, right), Collections.emptyList());
+    mExecutor.setFocalPoint(0, 0);
+    mExecutor.queue(mOwner, Arrays.asList(left, middle, right), Collections.emptyList());
+    assertEquals(Arrays.asList(left, middle, right), ranked());
+  }
+
+  // each view's first tile comes before any view's second, however many each queued
+  @Test
+  public void sharedTakesTurnsBetweenViews() throws InterruptedException {
+    start(false, true);
+    Tile.Listener other = listener();
+    Tile ours0 = tile(0, 0);
+    Tile ours1 = tile(1, 0);
+    Tile ours2 = tile(2, 0);
+    mExecutor.queue(mOwner, Arrays.asList(ours0, ours1, ours2), Collections.emptyList());
+    Tile theirs0 = tile(other, 0, 0);
+    Tile theirs1 = tile(other, 1, 0);
+    mExecutor.queue(other, Arrays.asList(theirs0, theirs1), Collections.emptyList());
+    List<Tile> ranked = ranked();
+    assertEquals(5, ranked.size());
+    // tiles tied on rank come out in either order
+    assertTrue(position(ranked, ours0) < 2 && position(ranked, theirs0) < 2);
+    assertTrue(position(ranked, ours1) >= 2 && position(ranked, theirs1) >= 2);
+    assertSame(ours2, ranked.get(4));
+  }
+
+  @Test
+  public void destroyedTilesAreNotRequeued() throws InterruptedException {
+    start(false);
+    Tile kept = tile(0, 0);
+    Tile dropped = tile(1, 0);
+    // destroying pulls the tile from the queue by key, which needs a detail level
+    Detail detail = new Detail(0, null);
+    kept.setDetail(detail);
+    dropped.setDetail(detail);
+    mExecutor.queue(mOwner, Arrays.asList(kept, dropped), Collections.emptyList());
+    dropped.destroy();
+    mExecutor.queue(mOwner, Collections.singletonList(kept), Collections.emptyList());
+    assertEquals(Collections.singletonList(kept), queued());
+    assertEquals(Tile.State.IDLE, dropped.getState());
+  }
+
+  @Test
+  public void recycledBuffersAreReusedWithinABudget() throws IOException {
+    mExecutor = new TileRenderExecutor(1);
+    EncodedBuffer small = mExecutor.obtainBuffer();
+    small.readFrom(new ByteArrayInputStream(new byte[100]));
+    mExecutor.recycleBuffer(small);
+    EncodedBuffer reused = mExecutor.obtainBuffer();
+    assertSame(small, reused);
+    assertTrue(reused.isEmpty());
+    // bigger than every spare buffer together is allowed to be, so it's dropped
+    EncodedBuffer large = mExecutor.obtainBuffer();
+    large.readFrom(new ByteArrayInputStream(new byte[4 * 1024 * 1024]));
+    mExecutor.recycleBuffer(large);
+    assertNotSame(large, mExecutor.obtainBuffer());
+  }
+
+  // two views of the same image queue tiles with the same keys - destroying one view's tile leaves the other's queued
+  @Test
+  public void destroyingRemovesOnlyThatTileFromTheQueue() throws InterruptedException {
+    start(false);
+    Tile.Listener other = listener();
+    Detail detail = new Detail(0, null);
+    Tile ours = tile(0, 0);
+    Tile theirs = tile(other, 0, 0);
+    ours.setDetail(detail);
+    theirs.setDetail(detail);
+    assertEquals(ours, theirs);
+    mExecutor.queue(mOwner, Collections.singletonList(ours), Collections.emptyList());
+    mExecutor.queue(other, Collections.singletonList(theirs), Collections.emptyList());
+    theirs.destroy();
+    assertEquals(1, queued().size());
+    assertSame(ours, queued().get(0));
+    assertEquals(Tile.State.QUEUED, ours.getState());
+    assertEquals(Tile.State.IDLE, theirs.getState());
+  }
+
+}
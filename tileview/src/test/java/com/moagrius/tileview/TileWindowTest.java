@@ -0,0 +1,197 @@
+package com.moagrius.tileview;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TileWindowTest {
+
+  private static Tile tile(int column, int row) {
+    Tile tile = new Tile(256, null, null, null, null, null, null, null, null, TileView.DiskCachePolicy.CACHE_NONE);
+    tile.setColumn(column);
+    tile.setRow(row);
+    return tile;
+  }
+
+  // tiles hash by their key, which needs a detail level - these have none
+  private static Set<Tile> tiles() {
+    return Collections.newSetFromMap(new IdentityHashMap<>());
+  }
+
+  private static Set<Tile> contents(TileWindow window) {
+    Set<Tile> tiles = tiles();
+    for (Tile tile : window) {
+      tiles.add(tile);
+    }
+    return tiles;
+  }
+
+  @Test
+  public void findsTilesByPosition() {
+    TileWindow window = new TileWindow();
+    assertNull(window.get(0, 0));
+    window.ensureCapacity(3, 2);
+    Tile tile = tile(2, 1);
+    window.put(tile);
+    assertEquals(1, window.size());
+    assertSame(tile, window.get(2, 1));
+    assertNull(window.get(1, 2));
+    assertSame(tile, window.remove(2, 1));
+    assertNull(window.remove(2, 1));
+    assertTrue(window.isEmpty());
+  }
+
+  // the ring wraps, so a position a whole window away lands on the same cell - but it isn't that tile
+  @Test
+  public void doesNotConfuseTilesAWindowApart() {
+    TileWindow window = new TileWindow();
+    window.ensureCapacity(4, 4);
+    Tile tile = tile(1, 1);
+    window.put(tile);
+    assertNull(window.get(5, 1));
+    assertNull(window.get(1, 5));
+    assertNull(window.remove(5, 5));
+    assertSame(tile, window.get(1, 1));
+  }
+
+  // pan right a column at a time - what stays in the window is never moved
+  @Test
+  public void slidesWithoutMovingWhatStays() {
+    TileWindow window = new TileWindow();
+    window.ensureCapacity(3, 3);
+    Tile[][] tiles = new Tile[10][3];
+    for (int column = 0; column < 3; column++) {
+      for (int row = 0; row < 3; row++) {
+        tiles[column][row] = tile(column, row);
+        window.put(tiles[column][row]);
+      }
+    }
+    for (int left = 1; left + 3 <= 10; left++) {
+      for (int row = 0; row < 3; row++) {
+        assertSame(tiles[left - 1][row], window.remove(left - 1, row));
+        tiles[left + 2][row] = tile(left + 2, row);
+        window.put(tiles[left + 2][row]);
+      }
+      assertEquals(9, window.size());
+      for (int column = left; column < left + 3; column++) {
+        for (int row = 0; row < 3; row++) {
+          assertSame(tiles[column][row], window.get(column, row));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void growingKeepsEveryTile() {
+    TileWindow window = new TileWindow();
+    window.ensureCapacity(2, 2);
+    Tile[] tiles = {tile(4, 6), tile(5, 6), tile(4, 7), tile(5, 7)};
+    for (Tile tile : tiles) {
+      window.put(tile);
+    }
+    window.ensureCapacity(5, 3);
+    for (Tile tile : tiles) {
+      assertSame(tile, window.get(tile.getColumn(), tile.getRow()));
+    }
+    // and there's room for the rest of the larger window without anything colliding
+    for (int column = 6; column < 9; column++) {
+      window.put(tile(column, 6));
+    }
+    for (Tile tile : tiles) {
+      assertSame(tile, window.get(tile.getColumn(), tile.getRow()));
+    }
+    assertEquals(7, window.size());
+  }
+
+  // patches are at multiples of the sample, so a window a cell per patch holds them all
+  @Test
+  public void indexesBySample() {
+    TileWindow window = new TileWindow();
+    window.setDetail(null, 4);
+    assertTrue(window.isFor(null, 4));
+    assertFalse(window.isFor(null, 2));
+    window.ensureCapacity(2, 2);
+    Tile[] tiles = {tile(0, 0), tile(4, 0), tile(0, 4), tile(4, 4)};
+    for (Tile tile : tiles) {
+      window.put(tile);
+    }
+    for (Tile tile : tiles) {
+      assertSame(tile, window.get(tile.getColumn(), tile.getRow()));
+    }
+  }
+
+  @Test
+  public void iteratesAndRemovesWhileIterating() {
+    TileWindow window = new TileWindow();
+    window.ensureCapacity(3, 3);
+    Set<Tile> expected = tiles();
+    for (int column = 0; column < 3; column++) {
+      Tile tile = tile(column, column);
+      window.put(tile);
+      expected.add(tile);
+    }
+    assertEquals(expected, contents(window));
+    Iterator<Tile> iterator = window.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getColumn() != 1) {
+        iterator.remove();
+      }
+    }
+    assertEquals(1, window.size());
+    assertNull(window.get(0, 0));
+    assertEquals(1, window.get(1, 1).getColumn());
+    assertEquals(1, contents(window).size());
+  }
+
+  @Test
+  public void iteratorRejectsMisuse() {
+    TileWindow window = new TileWindow();
+    window.ensureCapacity(2, 2);
+    window.put(tile(0, 0));
+    Iterator<Tile> iterator = window.iterator();
+    try {
+      iterator.remove();
+      fail("removed before next");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    iterator.next();
+    iterator.remove();
+    try {
+      iterator.remove();
+      fail("removed twice");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      iterator.next();
+      fail("went past the end");
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void clearForgetsEveryTile() {
+    TileWindow window = new TileWindow();
+    window.ensureCapacity(2, 2);
+    window.put(tile(0, 0));
+    window.put(tile(1, 1));
+    window.clear();
+    assertTrue(window.isEmpty());
+    assertNull(window.get(0, 0));
+    assertFalse(window.iterator().hasNext());
+  }
+
+}
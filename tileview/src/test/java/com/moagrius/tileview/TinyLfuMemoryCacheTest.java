@@ -0,0 +1,128 @@
+package com.moagrius.tileview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TinyLfuMemoryCacheTest {
+
+  // a 256px RGB_565 tile
+  private static final int TILE_SIZE = 128;
+
+  private final CountingPool mPool = new CountingPool();
+  private int mCreatedCount;
+
+  private TileBitmap tile() {
+    return tile(TILE_SIZE);
+  }
+
+  private TileBitmap tile(int size) {
+    mCreatedCount++;
+    return new TileBitmap(null, size, mPool);
+  }
+
+  // looks up every key, and puts it on a miss, the way a tile does
+  private float hitRate(TileView.TileCache cache, long[] keys) {
+    int hits = 0;
+    for (long key : keys) {
+      TileBitmap bitmap = cache.get(key);
+      if (bitmap != null) {
+        hits++;
+        bitmap.release();
+      } else {
+        cache.put(key, tile());
+      }
+    }
+    return (float) hits / keys.length;
+  }
+
+  // summed over several traces, since any one can favor either.  with only a couple of screens held LRU still does better -
+  // there's too little room for the window to adapt into
+  @Test
+  public void beatsLruOnPanTraces() {
+    // about ten screens of tiles
+    int size = TILE_SIZE * 300;
+    float lru = 0;
+    float tinyLfu = 0;
+    for (long seed = 1; seed <= 5; seed++) {
+      long[] keys = new PanTrace(seed, 5000).getKeys();
+      float traceLru = hitRate(new MemoryCache(size), keys);
+      float traceTinyLfu = hitRate(new TinyLfuMemoryCache(size), keys);
+      System.out.println("pan trace " + seed + ": " + keys.length + " lookups, lru " + traceLru + ", tiny lfu " + traceTinyLfu);
+      lru += traceLru;
+      tinyLfu += traceTinyLfu;
+    }
+    assertTrue("tiny lfu " + tinyLfu / 5 + " vs lru " + lru / 5, tinyLfu > lru);
+  }
+
+  @Test
+  public void scanDoesNotFlushFrequentlyUsedTiles() {
+    TinyLfuMemoryCache cache = new TinyLfuMemoryCache(TILE_SIZE * 20);
+    for (int pass = 0; pass < 5; pass++) {
+      for (int i = 0; i < 10; i++) {
+        TileBitmap bitmap = cache.get(TileKey.pack(0, 1, i, 0));
+        if (bitmap == null) {
+          cache.put(TileKey.pack(0, 1, i, 0), tile());
+        } else {
+          bitmap.release();
+        }
+      }
+    }
+    // a fling - hundreds of tiles, each seen once
+    for (int i = 0; i < 500; i++) {
+      long key = TileKey.pack(0, 1, i, 1);
+      assertNull(cache.get(key));
+      cache.put(key, tile());
+    }
+    for (int i = 0; i < 10; i++) {
+      TileBitmap bitmap = cache.get(TileKey.pack(0, 1, i, 0));
+      assertNotNull("tile " + i + " was flushed", bitmap);
+      bitmap.release();
+    }
+  }
+
+  // a double sized candidate needs two entries gone.  it's more popular than the first, so that one's evicted - and it has
+  // to be admitted then, even though the second is more popular still, or the first was evicted for nothing
+  @Test
+  public void candidateThatBeatsTheFirstVictimIsAdmitted() {
+    // half window, half main
+    TinyLfuMemoryCache cache = new TinyLfuMemoryCache(TILE_SIZE * 4);
+    long first = TileKey.pack(0, 1, 0, 0);
+    long second = TileKey.pack(0, 1, 1, 0);
+    long candidate = TileKey.pack(0, 1, 2, 0);
+    cache.put(first, tile());
+    cache.put(second, tile());
+    // pushes both out of the window and into the main space, which has room for them
+    cache.put(TileKey.pack(0, 1, 3, 0), tile());
+    cache.put(TileKey.pack(0, 1, 4, 0), tile());
+    // a hit moves the second to protected, so the first is the eldest in probation
+    for (int i = 0; i < 5; i++) {
+      cache.get(second).release();
+    }
+    cache.get(candidate);
+    cache.get(candidate);
+    cache.put(candidate, tile(TILE_SIZE * 2));
+    // pushes the candidate out of the window
+    cache.put(TileKey.pack(0, 1, 5, 0), tile());
+    TileBitmap admitted = cache.get(candidate);
+    assertNotNull(admitted);
+    admitted.release();
+    assertNull(cache.get(first));
+    cache.trim(0);
+    assertEquals(mCreatedCount, mPool.mPutCount);
+  }
+
+  @Test
+  public void staysWithinBudgetAndReleasesWhatItDrops() {
+    TinyLfuMemoryCache cache = new TinyLfuMemoryCache(TILE_SIZE * 10);
+    long[] keys = new PanTrace(7, 500).getKeys();
+    hitRate(cache, keys);
+    cache.trim(0);
+    // everything that went in has come back out, exactly once
+    assertEquals(mCreatedCount, mPool.mPutCount);
+  }
+
+}